@@ -0,0 +1,210 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static uk.me.nicholaswilson.jsld.WasmUtil.*;
+
+/**
+ * Builds the inputs for the benchmarks.  Everything is generated from a fixed
+ * seed, so that every run (and every fork) measures exactly the same input.
+ *
+ * The link inputs fit together: the Wasm module imports one function for
+ * each function the symbols file exports, and exports "run", which the
+ * exports file re-exports.
+ */
+class BenchmarkFixtures {
+
+  private static final long SEED = 0x6A736C64L;
+
+  private static final byte FUNC_TYPE = 0x60;
+  private static final byte I32 = 0x7F;
+  private static final byte FUNCTION_KIND = 0x00;
+  private static final byte MEMORY_KIND = 0x02;
+  private static final byte OPCODE_CALL = 0x10;
+  private static final byte OPCODE_END = 0x0B;
+
+  /**
+   * Returns a buffer of unsigned LEBs, mostly short (as indices and sizes
+   * are) but with some of every length up to five bytes
+   */
+  public static ByteBuffer lebStream(int count) {
+    Random random = new Random(SEED);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(count * 2);
+    for (int i = 0; i < count; ++i) {
+      int bits = random.nextInt(10) < 7
+        ? 1 + random.nextInt(14)
+        : 1 + random.nextInt(31);
+      putUleb32(out, random.nextInt() >>> (32 - bits));
+    }
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  /** Returns a buffer of length-prefixed names, like an import section's */
+  public static ByteBuffer nameStream(int count) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(count * 16);
+    for (int i = 0; i < count; ++i)
+      putString(out, functionName(i));
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  /** The name of the n'th function imported by the Wasm module */
+  public static String functionName(int n) {
+    return "__syscall_fn_" + n;
+  }
+
+  /**
+   * Returns a Wasm module importing its memory and the given number of
+   * functions from the symbols, and exporting a "run" function which calls
+   * the first of them
+   */
+  public static byte[] wasmModule(int numImports) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] { 0, 'a', 's', 'm', 1, 0, 0, 0 }, 0, 8);
+
+    // One type, () -> i32, for everything
+    ByteArrayOutputStream types = new ByteArrayOutputStream();
+    putUleb32(types, 1);
+    types.write(FUNC_TYPE);
+    putUleb32(types, 0);
+    putUleb32(types, 1);
+    types.write(I32);
+    putSection(out, TYPE_SECTION_ID, types);
+
+    ByteArrayOutputStream imports = new ByteArrayOutputStream();
+    putUleb32(imports, numImports + 1);
+    putString(imports, WasmFile.SYMBOLS_MODULE);
+    putString(imports, "memory");
+    imports.write(MEMORY_KIND);
+    putUleb32(imports, 0); // No maximum
+    putUleb32(imports, 1);
+    for (int i = 0; i < numImports; ++i) {
+      putString(imports, WasmFile.SYMBOLS_MODULE);
+      putString(imports, functionName(i));
+      imports.write(FUNCTION_KIND);
+      putUleb32(imports, 0);
+    }
+    putSection(out, IMPORT_SECTION_ID, imports);
+
+    ByteArrayOutputStream functions = new ByteArrayOutputStream();
+    putUleb32(functions, 1);
+    putUleb32(functions, 0);
+    putSection(out, FUNCTION_SECTION_ID, functions);
+
+    ByteArrayOutputStream exports = new ByteArrayOutputStream();
+    putUleb32(exports, 1);
+    putString(exports, "run");
+    exports.write(FUNCTION_KIND);
+    putUleb32(exports, numImports);
+    putSection(out, EXPORT_SECTION_ID, exports);
+
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    putUleb32(code, 1);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    putUleb32(body, 0); // No locals
+    body.write(OPCODE_CALL);
+    putUleb32(body, 0);
+    body.write(OPCODE_END);
+    putUleb32(code, body.size());
+    code.write(body.toByteArray(), 0, body.size());
+    putSection(out, CODE_SECTION_ID, code);
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a symbols file shaped like syscalls.js: a block of constants, a
+   * few helpers, and then one exported function for each syscall, using the
+   * helpers and the memory.  syscalls.js itself is around 40KB, which is about
+   * 250 functions' worth.
+   */
+  public static String symbolsFile(int numFunctions) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("\"use strict\";\n\n");
+    sb.append("import { memory as linearMem } from \"__symbols\";\n");
+    sb.append("import { run } from \"__symbols\";\n\n");
+    for (int i = 0; i < numFunctions; i += 8) {
+      sb.append("const");
+      for (int j = i; j < i + 8 && j < numFunctions; ++j)
+        sb.append(j == i ? " " : ", ").append("E").append(j).append(" = ")
+          .append(j + 1);
+      sb.append(";\n");
+    }
+    sb.append("\n" +
+      "class SyscallException extends Error {\n" +
+      "  constructor(errno) {\n" +
+      "    super();\n" +
+      "    this.errno = errno;\n" +
+      "  }\n" +
+      "}\n\n" +
+      "function heap32() {\n" +
+      "  return new Int32Array(linearMem.buffer);\n" +
+      "}\n\n" +
+      "function checked(errno, fn) {\n" +
+      "  try {\n" +
+      "    return fn();\n" +
+      "  } catch (e) {\n" +
+      "    if (e instanceof SyscallException)\n" +
+      "      return -e.errno;\n" +
+      "    return -errno;\n" +
+      "  }\n" +
+      "}\n\n");
+    for (int i = 0; i < numFunctions; ++i) {
+      sb.append("export function ").append(functionName(i))
+        .append("(fd, ptr, len) {\n")
+        .append("  return checked(E").append(i).append(", () => {\n")
+        .append("    const heap = heap32();\n")
+        .append("    if (fd < 0 || ptr + len > heap.length * 4)\n")
+        .append("      throw new SyscallException(E").append(i).append(");\n")
+        .append("    let total = 0;\n")
+        .append("    for (let i = 0; i < len; i += 4)\n")
+        .append("      total += heap[(ptr + i) >> 2];\n")
+        .append("    return total + ").append(i).append(";\n")
+        .append("  });\n")
+        .append("}\n\n");
+    }
+    sb.append("export function checkRun() {\n" +
+      "  return run();\n" +
+      "}\n");
+    return sb.toString();
+  }
+
+  /** Returns an exports file re-exporting the Wasm module's "run" */
+  public static String exportsFile() {
+    return "import { run } from '__symbols';\n" +
+      "export { run };\n";
+  }
+
+  /**
+   * Writes a complete set of link inputs into the directory, named
+   * symbols.js, exports.js and module.wasm
+   */
+  public static void writeLinkInputs(Path directory, int numFunctions)
+    throws IOException {
+    Files.createDirectories(directory);
+    Files.write(
+      directory.resolve("symbols.js"),
+      symbolsFile(numFunctions).getBytes(StandardCharsets.UTF_8)
+    );
+    Files.write(
+      directory.resolve("exports.js"),
+      exportsFile().getBytes(StandardCharsets.UTF_8)
+    );
+    Files.write(directory.resolve("module.wasm"), wasmModule(numFunctions));
+  }
+
+  /** Deletes a directory written by writeLinkInputs, and all it contains */
+  public static void deleteDirectory(Path directory) throws IOException {
+    if (!Files.exists(directory))
+      return;
+    Files.walk(directory)
+      .sorted((a, b) -> b.compareTo(a))
+      .forEach(path -> path.toFile().delete());
+  }
+
+}
@@ -0,0 +1,70 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.shapesecurity.functional.data.ImmutableList;
+import com.shapesecurity.shift.ast.Directive;
+import com.shapesecurity.shift.ast.Script;
+import com.shapesecurity.shift.ast.Statement;
+import com.shapesecurity.shift.codegen.PrettyCodeGen;
+import com.shapesecurity.shift.parser.JsError;
+import com.shapesecurity.shift.parser.Parser;
+import com.shapesecurity.shift.scope.GlobalScope;
+import com.shapesecurity.shift.scope.ScopeAnalyzer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The work ModuleGenerator does for each module: the scope analysis which
+ * checks for stray globals, and printing the code, plainly or minified
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodegenBenchmark {
+
+  @Param({ "250" })
+  public int numFunctions;
+
+  private Script script;
+  private GlobalScope scope;
+
+  @Setup
+  public void setUp() throws JsError {
+    List<Statement> statements = new ArrayList<>();
+    ModuleUtil.extractImportsExports(
+      Parser.parseModule(BenchmarkFixtures.symbolsFile(numFunctions)),
+      "symbols.js",
+      statements,
+      new ArrayList<>(),
+      new ArrayList<>(),
+      new ArrayList<>()
+    );
+    script = new Script(
+      ImmutableList.of(new Directive("use strict")),
+      ImmutableList.from(statements)
+    );
+    scope = ScopeAnalyzer.analyze(script);
+  }
+
+  @Benchmark
+  public GlobalScope analyzeScopes() {
+    return ScopeAnalyzer.analyze(script);
+  }
+
+  @Benchmark
+  public String prettyCodeGen() {
+    return PrettyCodeGen.codeGen(script);
+  }
+
+  @Benchmark
+  public String minifyingCodeGen() {
+    return MinifyingCodeGen.codeGen(script, scope, Collections.emptySet());
+  }
+
+}
@@ -0,0 +1,68 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import picocli.CommandLine;
+
+/**
+ * A whole link, from reading the inputs to writing the output.  Each link
+ * gets a fresh InputCache, so that every input is parsed again, as it is for
+ * a link run from the command line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkBenchmark {
+
+  @Param({ "250", "1000" })
+  public int numFunctions;
+
+  @Param({ "false", "true" })
+  public boolean minify;
+
+  private Path directory;
+  private final ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("js-ld-bench");
+    BenchmarkFixtures.writeLinkInputs(directory, numFunctions);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    BenchmarkFixtures.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public int link() {
+    diagnostics.reset();
+    Linker linker = new Linker(new InputCache(), directory);
+    int status = linker.run(
+      minify
+        ? new String[] {
+          "-o", "out.js", "-s", "symbols.js", "-e", "exports.js",
+          "--minify", "module.wasm"
+        }
+        : new String[] {
+          "-o", "out.js", "-s", "symbols.js", "-e", "exports.js",
+          "module.wasm"
+        },
+      new PrintStream(diagnostics),
+      CommandLine.Help.Ansi.OFF
+    );
+    if (status != 0)
+      throw new IllegalStateException("Link failed: " + diagnostics);
+    return status;
+  }
+
+}
@@ -0,0 +1,264 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Links synthetic corpora of growing size, and reports how the time and peak
+ * heap grow with the input.  Each step multiplies every count in the corpus
+ * by the scale, so a linker which scales linearly shows a growth exponent of
+ * about 1 between steps; anything much above that is flagged as superlinear.
+ *
+ * Unlike the JMH benchmarks, this runs the links one after another in a
+ * single JVM, so that the peak heap of each link can be measured.
+ */
+@Command(
+  name = "scaling-benchmark",
+  description = "Measures how link time and memory grow with the input size"
+)
+class ScalingBenchmark implements Runnable {
+
+  // A growth exponent above this is reported as superlinear
+  private static final double SUPERLINEAR = 1.3;
+  private static final int[] DEFAULT_SCALES = { 1, 2, 4, 8, 16 };
+
+  // Left null by default, since picocli adds to a default array
+  @Option(
+    names = "--scales",
+    split = ",",
+    description = "The scales to link at (default: 1,2,4,8,16)"
+  )
+  int[] scales;
+
+  @Option(names = "--imports", description = "Imported functions at scale 1")
+  int numImports = 250;
+
+  @Option(names = "--exports", description = "Exported functions at scale 1")
+  int numExports = 625;
+
+  @Option(names = "--globals", description = "Exported globals at scale 1")
+  int numGlobals = 10;
+
+  @Option(names = "--data-bytes", description = "Data section size at scale 1")
+  int dataBytes = 16384;
+
+  @Option(names = "--code-bytes", description = "The size of each function body")
+  int codeBytes = 64;
+
+  @Option(names = "--repeats", description = "Links to time at each scale")
+  int repeats = 5;
+
+  @Option(names = "--warmups", description = "Untimed links before the first scale")
+  int warmups = 5;
+
+  @Option(names = "--minify", description = "Minify the output")
+  boolean minify;
+
+  @Option(
+    names = { "-o", "--output" },
+    description = "A file to write the results to, as JSON"
+  )
+  Path resultsPath;
+
+  /** Runs the benchmark from the command line */
+  public static void main(String[] args) {
+    CommandLine.run(new ScalingBenchmark(), System.err, args);
+  }
+
+  @Override
+  public void run() {
+    Path root;
+    try {
+      root = Files.createTempDirectory("js-ld-scaling");
+    } catch (IOException e) {
+      throw new LdException("Unable to create a directory: " + e, e);
+    }
+    try {
+      List<Result> results = new ArrayList<>();
+      for (int scale : scales != null ? scales : DEFAULT_SCALES) {
+        Path directory = root.resolve("scale-" + scale);
+        long inputBytes = corpus(scale).write(directory);
+        if (results.isEmpty()) {
+          for (int i = 0; i < warmups; ++i)
+            link(directory);
+        }
+        long[] times = new long[repeats];
+        long peakHeap = 0;
+        for (int i = 0; i < repeats; ++i) {
+          resetPeakHeap();
+          long start = System.nanoTime();
+          link(directory);
+          times[i] = System.nanoTime() - start;
+          peakHeap = Math.max(peakHeap, getPeakHeap());
+        }
+        Arrays.sort(times);
+        Result result = new Result(
+          scale,
+          inputBytes,
+          numImports * scale + numExports * scale + numGlobals * scale,
+          times[repeats / 2],
+          peakHeap,
+          results.isEmpty() ? null : results.get(results.size() - 1)
+        );
+        results.add(result);
+        System.out.println(result);
+      }
+      if (resultsPath != null)
+        writeResults(results);
+    } catch (IOException e) {
+      throw new LdException("Unable to write the corpus: " + e, e);
+    } finally {
+      try {
+        BenchmarkFixtures.deleteDirectory(root);
+      } catch (IOException e) {
+        // Only a temporary directory
+      }
+    }
+  }
+
+  private SyntheticCorpus corpus(int scale) {
+    return new SyntheticCorpus(
+      numImports * scale,
+      numExports * scale,
+      1,
+      numGlobals * scale,
+      codeBytes,
+      dataBytes * scale
+    );
+  }
+
+  private void link(Path directory) {
+    List<String> args = SyntheticCorpus.linkArgs("out.js");
+    if (minify)
+      args.add(0, "--minify");
+    ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    int status = new Linker(new InputCache(), directory).run(
+      args.toArray(new String[0]),
+      new PrintStream(diagnostics),
+      CommandLine.Help.Ansi.OFF
+    );
+    if (status != 0)
+      throw new LdException("Link failed: " + diagnostics);
+  }
+
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    }
+  }
+
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  private void writeResults(List<Result> results) throws IOException {
+    StringBuilder sb = new StringBuilder("[");
+    String separator = "\n";
+    for (Result result : results) {
+      sb.append(separator).append("  ").append(result.toJson());
+      separator = ",\n";
+    }
+    sb.append("\n]\n");
+    Files.write(resultsPath, sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+
+  private static class Result {
+
+    public final int scale;
+    public final long inputBytes;
+    public final long symbols;
+    public final long timeNanos;
+    public final long peakHeapBytes;
+    // How time grows against the input since the previous scale, as the
+    // exponent k in time ~ size^k (or NaN for the first scale)
+    public final double timeExponent;
+    public final double heapExponent;
+
+    public Result(
+      int scale,
+      long inputBytes,
+      long symbols,
+      long timeNanos,
+      long peakHeapBytes,
+      Result previous
+    ) {
+      this.scale = scale;
+      this.inputBytes = inputBytes;
+      this.symbols = symbols;
+      this.timeNanos = timeNanos;
+      this.peakHeapBytes = peakHeapBytes;
+      if (previous == null) {
+        timeExponent = heapExponent = Double.NaN;
+      } else {
+        double growth = Math.log((double)inputBytes / previous.inputBytes);
+        timeExponent =
+          Math.log((double)timeNanos / previous.timeNanos) / growth;
+        heapExponent =
+          Math.log((double)peakHeapBytes / previous.peakHeapBytes) / growth;
+      }
+    }
+
+    public boolean isSuperlinear() {
+      return timeExponent > SUPERLINEAR || heapExponent > SUPERLINEAR;
+    }
+
+    public String toJson() {
+      // Locale.ROOT, so that the numbers are written the way JSON needs
+      return String.format(
+        Locale.ROOT,
+        "{\"scale\": %d, \"inputBytes\": %d, \"symbols\": %d, " +
+          "\"timeNanos\": %d, \"peakHeapBytes\": %d, " +
+          "\"timeExponent\": %s, \"heapExponent\": %s, \"superlinear\": %b}",
+        scale, inputBytes, symbols, timeNanos, peakHeapBytes,
+        toJson(timeExponent),
+        toJson(heapExponent),
+        isSuperlinear()
+      );
+    }
+
+    private static String toJson(double exponent) {
+      return Double.isNaN(exponent)
+        ? "null"
+        : String.format(Locale.ROOT, "%.3f", exponent);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "scale %3d: %10d input bytes, %7d symbols, %9.1f ms, %7.1f MB peak heap%s",
+        scale, inputBytes, symbols, timeNanos / 1e6, peakHeapBytes / 1048576.0,
+        Double.isNaN(timeExponent) ? "" : String.format(
+          ", growth time^%.2f heap^%.2f%s",
+          timeExponent,
+          heapExponent,
+          isSuperlinear() ? " SUPERLINEAR" : ""
+        )
+      );
+    }
+
+  }
+
+}
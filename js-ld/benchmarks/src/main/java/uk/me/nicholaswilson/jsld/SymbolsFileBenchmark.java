@@ -0,0 +1,61 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.shapesecurity.shift.ast.Module;
+import com.shapesecurity.shift.ast.Statement;
+import com.shapesecurity.shift.parser.JsError;
+import com.shapesecurity.shift.parser.Parser;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Loading a symbols file the size of syscalls.js, one stage at a time:
+ * parsing, validation, and pulling out the imports and exports
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SymbolsFileBenchmark {
+
+  @Param({ "250" })
+  public int numFunctions;
+
+  private String source;
+  private Module module;
+
+  @Setup
+  public void setUp() throws JsError {
+    source = BenchmarkFixtures.symbolsFile(numFunctions);
+    module = Parser.parseModule(source);
+  }
+
+  @Benchmark
+  public Module parse() throws JsError {
+    return Parser.parseModule(source);
+  }
+
+  @Benchmark
+  public void validate() {
+    ModuleUtil.validateModule(module, "symbols.js");
+  }
+
+  @Benchmark
+  public List<Statement> extractImportsExports() {
+    List<Statement> statements = new ArrayList<>();
+    ModuleUtil.extractImportsExports(
+      module,
+      "symbols.js",
+      statements,
+      new ArrayList<>(),
+      new ArrayList<>(),
+      new ArrayList<>()
+    );
+    return statements;
+  }
+
+}
@@ -0,0 +1,304 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import static uk.me.nicholaswilson.jsld.WasmUtil.*;
+
+/**
+ * Generates a set of link inputs of any size: a valid Wasm module, with a
+ * symbols file defining everything it imports, and an exports file exporting
+ * everything it exports.  The files are written as module.wasm, symbols.js
+ * and exports.js, so the link is:
+ *
+ *   js-ld -o out.js -s symbols.js -e exports.js module.wasm
+ *
+ * Several memories are only valid Wasm with the multi-memory proposal, but
+ * the linker doesn't mind.
+ */
+@Command(
+  name = "synthetic-corpus",
+  description = "Generates synthetic link inputs for benchmarking js-ld"
+)
+class SyntheticCorpus implements Runnable {
+
+  private static final byte FUNC_TYPE = 0x60;
+  private static final byte I32 = 0x7F;
+  private static final byte FUNCTION_KIND = 0x00;
+  private static final byte MEMORY_KIND = 0x02;
+  private static final byte GLOBAL_KIND = 0x03;
+  private static final byte MUTABLE = 0x01;
+  private static final byte OPCODE_CALL = 0x10;
+  private static final byte OPCODE_DROP = 0x1A;
+  private static final byte OPCODE_CONST_I32 = 0x41;
+  private static final byte OPCODE_END = 0x0B;
+
+  @Option(
+    names = "--imports",
+    description = "Functions imported from the symbols file"
+  )
+  int numImports = 1000;
+
+  @Option(
+    names = "--exports",
+    description = "Functions exported by the Wasm module"
+  )
+  int numExports = 1000;
+
+  @Option(
+    names = "--memories",
+    description = "Memories imported by the Wasm module"
+  )
+  int numMemories = 1;
+
+  @Option(
+    names = "--globals",
+    description = "Globals defined and exported by the Wasm module"
+  )
+  int numGlobals = 10;
+
+  @Option(
+    names = "--code-bytes",
+    description = "The size of each function body"
+  )
+  int codeBytes = 64;
+
+  @Option(
+    names = "--data-bytes",
+    description = "The size of the data section"
+  )
+  int dataBytes = 4096;
+
+  @Option(
+    names = { "-o", "--output" },
+    description = "The directory to write the inputs to",
+    required = true
+  )
+  Path directory;
+
+  /** Generates a corpus from the command line */
+  public static void main(String[] args) {
+    CommandLine.run(new SyntheticCorpus(), System.err, args);
+  }
+
+  SyntheticCorpus() {
+  }
+
+  SyntheticCorpus(
+    int numImports,
+    int numExports,
+    int numMemories,
+    int numGlobals,
+    int codeBytes,
+    int dataBytes
+  ) {
+    this.numImports = numImports;
+    this.numExports = numExports;
+    this.numMemories = numMemories;
+    this.numGlobals = numGlobals;
+    this.codeBytes = codeBytes;
+    this.dataBytes = dataBytes;
+  }
+
+  @Override
+  public void run() {
+    try {
+      write(directory);
+    } catch (IOException e) {
+      throw new LdException("Unable to write to " + directory + ": " + e, e);
+    }
+  }
+
+  /** Writes the inputs to the directory, returning their total size */
+  public long write(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    byte[] wasm = generateWasm();
+    byte[] symbols = generateSymbols().getBytes(StandardCharsets.UTF_8);
+    byte[] exports = generateExports().getBytes(StandardCharsets.UTF_8);
+    Files.write(directory.resolve("module.wasm"), wasm);
+    Files.write(directory.resolve("symbols.js"), symbols);
+    Files.write(directory.resolve("exports.js"), exports);
+    return wasm.length + symbols.length + exports.length;
+  }
+
+  /** The arguments for linking the inputs, relative to their directory */
+  public static List<String> linkArgs(String outputName) {
+    List<String> args = new ArrayList<>();
+    args.add("-o");
+    args.add(outputName);
+    args.add("-s");
+    args.add("symbols.js");
+    args.add("-e");
+    args.add("exports.js");
+    args.add("module.wasm");
+    return args;
+  }
+
+  private static String importName(int n) {
+    return "js_fn_" + n;
+  }
+
+  private static String exportName(int n) {
+    return "wasm_fn_" + n;
+  }
+
+  private static String memoryName(int n) {
+    return n == 0 ? "memory" : "memory_" + n;
+  }
+
+  private static String globalName(int n) {
+    return "wasm_global_" + n;
+  }
+
+  private byte[] generateWasm() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] { 0, 'a', 's', 'm', 1, 0, 0, 0 }, 0, 8);
+
+    // One type, () -> i32, for every function
+    ByteArrayOutputStream types = new ByteArrayOutputStream();
+    putUleb32(types, 1);
+    types.write(FUNC_TYPE);
+    putUleb32(types, 0);
+    putUleb32(types, 1);
+    types.write(I32);
+    putSection(out, TYPE_SECTION_ID, types);
+
+    ByteArrayOutputStream imports = new ByteArrayOutputStream();
+    putUleb32(imports, numMemories + numImports);
+    for (int i = 0; i < numMemories; ++i) {
+      putString(imports, WasmFile.SYMBOLS_MODULE);
+      putString(imports, memoryName(i));
+      imports.write(MEMORY_KIND);
+      putUleb32(imports, 0); // No maximum
+      putUleb32(imports, Math.max(1, (dataBytes + 0xFFFF) >> 16));
+    }
+    for (int i = 0; i < numImports; ++i) {
+      putString(imports, WasmFile.SYMBOLS_MODULE);
+      putString(imports, importName(i));
+      imports.write(FUNCTION_KIND);
+      putUleb32(imports, 0);
+    }
+    putSection(out, IMPORT_SECTION_ID, imports);
+
+    ByteArrayOutputStream functions = new ByteArrayOutputStream();
+    putUleb32(functions, numExports);
+    for (int i = 0; i < numExports; ++i)
+      putUleb32(functions, 0);
+    putSection(out, FUNCTION_SECTION_ID, functions);
+
+    ByteArrayOutputStream globals = new ByteArrayOutputStream();
+    putUleb32(globals, numGlobals);
+    for (int i = 0; i < numGlobals; ++i) {
+      globals.write(I32);
+      globals.write(MUTABLE);
+      globals.write(OPCODE_CONST_I32);
+      putSleb32(globals, i);
+      globals.write(OPCODE_END);
+    }
+    putSection(out, GLOBAL_SECTION_ID, globals);
+
+    ByteArrayOutputStream exports = new ByteArrayOutputStream();
+    putUleb32(exports, numExports + numGlobals);
+    for (int i = 0; i < numExports; ++i) {
+      putString(exports, exportName(i));
+      exports.write(FUNCTION_KIND);
+      putUleb32(exports, numImports + i);
+    }
+    for (int i = 0; i < numGlobals; ++i) {
+      putString(exports, globalName(i));
+      exports.write(GLOBAL_KIND);
+      putUleb32(exports, i);
+    }
+    putSection(out, EXPORT_SECTION_ID, exports);
+
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    putUleb32(code, numExports);
+    for (int i = 0; i < numExports; ++i) {
+      // Call an import (or return a constant), padded out with dropped
+      // constants to the size asked for
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      putUleb32(body, 0); // No locals
+      while (body.size() + 4 < codeBytes) {
+        body.write(OPCODE_CONST_I32);
+        putSleb32(body, body.size() & 0x3F);
+        body.write(OPCODE_DROP);
+      }
+      if (numImports > 0) {
+        body.write(OPCODE_CALL);
+        putUleb32(body, i % numImports);
+      } else {
+        body.write(OPCODE_CONST_I32);
+        putSleb32(body, i & 0x3F);
+      }
+      body.write(OPCODE_END);
+      putUleb32(code, body.size());
+      code.write(body.toByteArray(), 0, body.size());
+    }
+    putSection(out, CODE_SECTION_ID, code);
+
+    if (numMemories > 0 && dataBytes > 0) {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      putUleb32(data, 1);
+      putUleb32(data, 0); // Active, memory 0
+      data.write(OPCODE_CONST_I32);
+      putSleb32(data, 0);
+      data.write(OPCODE_END);
+      putUleb32(data, dataBytes);
+      for (int i = 0; i < dataBytes; ++i)
+        data.write(i * 31);
+      putSection(out, DATA_SECTION_ID, data);
+    }
+
+    return out.toByteArray();
+  }
+
+  private String generateSymbols() {
+    StringBuilder sb = new StringBuilder();
+    if (numMemories > 0) {
+      sb.append("import { memory as linearMem } from '__symbols';\n\n");
+      sb.append("function heap32() {\n" +
+        "  return new Int32Array(linearMem.buffer);\n" +
+        "}\n\n");
+    } else {
+      sb.append("function heap32() {\n" +
+        "  return new Int32Array(16);\n" +
+        "}\n\n");
+    }
+    for (int i = 0; i < numImports; ++i) {
+      sb.append("export function ").append(importName(i)).append("() {\n")
+        .append("  const heap = heap32();\n")
+        .append("  return heap[").append(i).append(" % heap.length] + ")
+        .append(i).append(";\n")
+        .append("}\n\n");
+    }
+    return sb.toString();
+  }
+
+  private String generateExports() {
+    StringBuilder sb = new StringBuilder();
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < numExports; ++i)
+      names.add(exportName(i));
+    for (int i = 0; i < numGlobals; ++i)
+      names.add(globalName(i));
+    sb.append("import {\n");
+    for (String name : names)
+      sb.append("  ").append(name).append(",\n");
+    sb.append("} from '__symbols';\n\n");
+    sb.append("export {\n");
+    for (String name : names)
+      sb.append("  ").append(name).append(",\n");
+    sb.append("};\n");
+    return sb.toString();
+  }
+
+}
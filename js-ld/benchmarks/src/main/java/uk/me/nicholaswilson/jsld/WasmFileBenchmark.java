@@ -0,0 +1,45 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Reading a Wasm module with a large import section, as WasmFile does */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WasmFileBenchmark {
+
+  @Param({ "100", "1000", "10000" })
+  public int numImports;
+
+  private Path path;
+
+  @Setup
+  public void setUp() throws IOException {
+    path = Files.createTempFile("js-ld-bench", ".wasm");
+    Files.write(path, BenchmarkFixtures.wasmModule(numImports));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  @Benchmark
+  public WasmFile load() {
+    return new WasmFile(path, false);
+  }
+
+  @Benchmark
+  public WasmFile loadChecked() {
+    return new WasmFile(path, true);
+  }
+
+}
@@ -0,0 +1,45 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** The primitive decoders every section of a Wasm module is read with */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WasmUtilBenchmark {
+
+  private static final int COUNT = 100_000;
+
+  private ByteBuffer lebs;
+  private ByteBuffer names;
+
+  @Setup
+  public void setUp() {
+    lebs = BenchmarkFixtures.lebStream(COUNT);
+    names = BenchmarkFixtures.nameStream(COUNT);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void getUleb32(Blackhole blackhole) {
+    ByteBuffer buffer = lebs.duplicate();
+    while (buffer.hasRemaining())
+      blackhole.consume(WasmUtil.getUleb32(buffer));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void getString(Blackhole blackhole) {
+    ByteBuffer buffer = names.duplicate();
+    while (buffer.hasRemaining())
+      blackhole.consume(WasmUtil.getString(buffer));
+  }
+
+}
@@ -0,0 +1,153 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import picocli.CommandLine;
+
+/**
+ * Runs all the links listed in a manifest within one process.  Input files
+ * shared between the links are parsed just once, through the InputCache, and
+ * independent links run in parallel.
+ *
+ * The manifest has one link per line, giving the linker's usual arguments
+ * separated by whitespace, with relative paths taken from the manifest's
+ * directory.  An argument containing whitespace can be quoted, as in a shell:
+ * within single quotes everything is taken literally, and within double
+ * quotes a backslash escapes a '"' or another backslash.  Blank lines and
+ * lines starting with '#' are ignored.
+ */
+class BatchLink {
+
+  private final Path manifestPath;
+  private final InputCache inputCache;
+
+  public BatchLink(Path manifestPath, InputCache inputCache) {
+    this.manifestPath = manifestPath;
+    this.inputCache = inputCache;
+  }
+
+  public void run(PrintStream err) {
+    Path directory = manifestPath.toAbsolutePath().getParent();
+    List<String[]> entries = readManifest();
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors()
+    );
+    List<Future<Result>> results = new ArrayList<>();
+    try {
+      for (String[] args : entries)
+        results.add(executor.submit(() -> link(args, directory)));
+
+      // Report each link's diagnostics in manifest order, however the links
+      // happened to be scheduled.
+      int failures = 0;
+      for (Future<Result> future : results) {
+        Result result = Linker.join(future);
+        err.print(result.diagnostics);
+        if (result.status != 0)
+          ++failures;
+      }
+      if (failures != 0) {
+        throw new LdException(
+          failures + " of " + entries.size() + " links failed in " +
+            manifestPath
+        );
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private List<String[]> readManifest() {
+    List<String[]> entries = new ArrayList<>();
+    String[] lines = FileUtil.pathToString(manifestPath).split("\n");
+    for (int i = 0; i < lines.length; ++i) {
+      String line = lines[i].trim();
+      if (line.isEmpty() || line.startsWith("#"))
+        continue;
+      entries.add(splitArguments(line, i + 1));
+    }
+    return entries;
+  }
+
+  /** Splits a manifest line into arguments, removing any quotes */
+  private String[] splitArguments(String line, int lineNumber) {
+    List<String> args = new ArrayList<>();
+    StringBuilder arg = new StringBuilder();
+    boolean inArg = false;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (Character.isWhitespace(c)) {
+        if (inArg)
+          args.add(arg.toString());
+        arg.setLength(0);
+        inArg = false;
+        continue;
+      }
+      inArg = true;
+      if (c == '\'' || c == '"') {
+        int end = i + 1;
+        for (; end < line.length() && line.charAt(end) != c; ++end) {
+          char q = line.charAt(end);
+          if (c == '"' && q == '\\' && end + 1 < line.length() &&
+            (line.charAt(end + 1) == '"' || line.charAt(end + 1) == '\\'))
+            q = line.charAt(++end);
+          arg.append(q);
+        }
+        if (end == line.length()) {
+          throw new LdException(
+            "Unterminated quote on line " + lineNumber + " of " + manifestPath
+          );
+        }
+        i = end;
+      } else {
+        arg.append(c);
+      }
+    }
+    if (inArg)
+      args.add(arg.toString());
+    return args.toArray(new String[0]);
+  }
+
+  private Result link(String[] args, Path directory) {
+    ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    int status;
+    try (PrintStream err = new PrintStream(diagnostics, true, "UTF-8")) {
+      try {
+        Linker l = new Linker(inputCache, directory);
+        status = l.run(args, err, CommandLine.Help.Ansi.OFF);
+      } catch (RuntimeException e) {
+        err.println(e.toString());
+        status = 1;
+      }
+      if (status != 0)
+        err.println("  (in link: " + String.join(" ", args) + ")");
+      return new Result(status, diagnostics.toString("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // Every JRE is required to provide UTF-8
+      throw new AssertionError(e);
+    }
+  }
+
+
+  private static class Result {
+
+    public final int status;
+    public final String diagnostics;
+
+    public Result(int status, String diagnostics) {
+      this.status = status;
+      this.diagnostics = diagnostics;
+    }
+
+  }
+
+}
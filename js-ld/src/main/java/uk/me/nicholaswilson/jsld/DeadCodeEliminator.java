@@ -0,0 +1,301 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.*;
+
+import com.shapesecurity.functional.data.ImmutableList;
+import com.shapesecurity.functional.data.Maybe;
+import com.shapesecurity.shift.ast.*;
+import com.shapesecurity.shift.ast.operators.BinaryOperator;
+import com.shapesecurity.shift.scope.Declaration;
+import com.shapesecurity.shift.scope.Reference;
+import com.shapesecurity.shift.scope.Scope;
+import com.shapesecurity.shift.scope.ScopeAnalyzer;
+import com.shapesecurity.shift.scope.Variable;
+import com.shapesecurity.shift.visitor.Flattener;
+
+/**
+ * Removes the top-level declarations of a module which can't be reached from
+ * the names it needs to export.  Functions, classes and consts are removed,
+ * one declarator at a time for consts, as long as declaring them can't have
+ * side effects.  Every other statement is kept, along with everything it
+ * refers to.
+ */
+class DeadCodeEliminator {
+
+  private final List<Statement> code;
+  private final List<Unit> units = new ArrayList<>();
+  private final Map<Node, Unit> unitsByNode = new IdentityHashMap<>();
+
+  private DeadCodeEliminator(List<Statement> code) {
+    this.code = code;
+  }
+
+  /**
+   * Returns the statements of the module's code which are needed by the
+   * given (local) names
+   */
+  public static List<Statement> removeUnreachable(
+    List<Statement> code,
+    Set<String> liveNames
+  ) {
+    return new DeadCodeEliminator(code).removeUnreachable(liveNames);
+  }
+
+  private List<Statement> removeUnreachable(Set<String> liveNames) {
+    splitUnits();
+
+    // The code is analysed as a function body, so that its declarations are
+    // all in one scope, just as they are once it's wrapped up as a module.
+    FunctionExpression wrapper = new FunctionExpression(
+      Maybe.empty(),
+      false,
+      new FormalParameters(ImmutableList.empty(), Maybe.empty()),
+      new FunctionBody(ImmutableList.empty(), ImmutableList.from(code))
+    );
+    Scope scope = ScopeAnalyzer.analyze(new Script(
+      ImmutableList.of(new Directive("use strict")),
+      ImmutableList.of(new ExpressionStatement(wrapper))
+    ));
+    while (scope.astNode != wrapper)
+      scope = scope.children.maybeHead().fromJust();
+
+    Deque<Unit> worklist = new ArrayDeque<>();
+    for (Unit unit : units) {
+      if (!unit.removable)
+        worklist.add(unit);
+    }
+    for (Variable v : scope.variables()) {
+      List<Unit> declaringUnits = new ArrayList<>();
+      for (Declaration d : v.declarations) {
+        Unit unit = unitsByNode.get(d.node);
+        if (unit != null)
+          declaringUnits.add(unit);
+      }
+      for (Reference r : v.references) {
+        Unit unit = unitsByNode.get(r.node.<Node>either(n -> n, n -> n));
+        if (unit != null)
+          unit.dependencies.addAll(declaringUnits);
+      }
+      if (liveNames.contains(v.name))
+        worklist.addAll(declaringUnits);
+    }
+
+    while (!worklist.isEmpty()) {
+      Unit unit = worklist.remove();
+      if (unit.live)
+        continue;
+      unit.live = true;
+      worklist.addAll(unit.dependencies);
+    }
+
+    return rebuild();
+  }
+
+  /** Splits the code into units, which are kept or removed as a whole */
+  private void splitUnits() {
+    for (Statement s : code) {
+      if (s instanceof VariableDeclarationStatement &&
+        ((VariableDeclarationStatement)s).declaration.kind ==
+          VariableDeclarationKind.Const) {
+        for (VariableDeclarator vd :
+          ((VariableDeclarationStatement)s).declaration.declarators) {
+          addUnit(
+            new Unit(
+              vd.binding instanceof BindingIdentifier &&
+                (vd.init.isNothing() || isPure(vd.init.fromJust()))
+            ),
+            new VariableDeclarationStatement(new VariableDeclaration(
+              VariableDeclarationKind.Const,
+              ImmutableList.of(vd)
+            ))
+          );
+        }
+      } else if (s instanceof FunctionDeclaration) {
+        addUnit(new Unit(true), s);
+      } else if (s instanceof ClassDeclaration) {
+        ClassDeclaration cd = (ClassDeclaration)s;
+        addUnit(new Unit(isPure(cd._super, cd.elements)), s);
+      } else {
+        addUnit(new Unit(false), s);
+      }
+    }
+  }
+
+  private void addUnit(Unit unit, Statement statement) {
+    units.add(unit);
+    Script script = new Script(ImmutableList.empty(), ImmutableList.of(statement));
+    for (Node node : Flattener.flatten(script))
+      unitsByNode.put(node, unit);
+  }
+
+  private List<Statement> rebuild() {
+    List<Statement> liveCode = new ArrayList<>();
+    Iterator<Unit> unitIterator = units.iterator();
+    for (Statement s : code) {
+      if (s instanceof VariableDeclarationStatement &&
+        ((VariableDeclarationStatement)s).declaration.kind ==
+          VariableDeclarationKind.Const) {
+        VariableDeclaration declaration =
+          ((VariableDeclarationStatement)s).declaration;
+        List<VariableDeclarator> liveDeclarators = new ArrayList<>();
+        for (VariableDeclarator vd : declaration.declarators) {
+          if (unitIterator.next().live)
+            liveDeclarators.add(vd);
+        }
+        if (liveDeclarators.size() == declaration.declarators.length) {
+          liveCode.add(s);
+        } else if (!liveDeclarators.isEmpty()) {
+          liveCode.add(new VariableDeclarationStatement(new VariableDeclaration(
+            VariableDeclarationKind.Const,
+            ImmutableList.from(liveDeclarators)
+          )));
+        }
+      } else if (unitIterator.next().live) {
+        liveCode.add(s);
+      }
+    }
+    return liveCode;
+  }
+
+  /**
+   * Whether evaluating the expression certainly has no side effects.  Reading
+   * a variable is assumed to be harmless, but reading a property isn't, since
+   * it may call a getter, and nor is converting a variable's value.
+   */
+  private static boolean isPure(Expression e) {
+    if (e instanceof LiteralBooleanExpression ||
+      e instanceof LiteralInfinityExpression ||
+      e instanceof LiteralNullExpression ||
+      e instanceof LiteralNumericExpression ||
+      e instanceof LiteralRegExpExpression ||
+      e instanceof LiteralStringExpression ||
+      e instanceof IdentifierExpression ||
+      e instanceof FunctionExpression ||
+      e instanceof ArrowExpression)
+      return true;
+    if (e instanceof ClassExpression) {
+      ClassExpression ce = (ClassExpression)e;
+      return isPure(ce._super, ce.elements);
+    }
+    if (e instanceof UnaryExpression) {
+      // Every unary operator but delete makes a primitive
+      return isPrimitive(e);
+    }
+    if (e instanceof BinaryExpression) {
+      BinaryExpression be = (BinaryExpression)e;
+      switch (be.operator) {
+        case Sequence:
+        case LogicalOr:
+        case LogicalAnd:
+        case StrictEqual:
+        case StrictNotEqual:
+          return isPure(be.left) && isPure(be.right);
+        case In:
+        case Instanceof:
+          // These throw unless given an object, and may call into it
+          return false;
+        default:
+          return isPrimitive(be.left) && isPrimitive(be.right);
+      }
+    }
+    if (e instanceof ConditionalExpression) {
+      ConditionalExpression ce = (ConditionalExpression)e;
+      return isPure(ce.test) && isPure(ce.consequent) && isPure(ce.alternate);
+    }
+    if (e instanceof ArrayExpression) {
+      for (Maybe<SpreadElementExpression> element :
+        ((ArrayExpression)e).elements) {
+        if (element.isJust() && !(element.fromJust() instanceof Expression &&
+          isPure((Expression)element.fromJust())))
+          return false;
+      }
+      return true;
+    }
+    if (e instanceof ObjectExpression) {
+      for (ObjectProperty p : ((ObjectExpression)e).properties) {
+        if (p instanceof DataProperty) {
+          DataProperty dp = (DataProperty)p;
+          if (!(dp.name instanceof StaticPropertyName) ||
+            !isPure(dp.expression))
+            return false;
+        } else if (p instanceof MethodDefinition) {
+          if (!(((MethodDefinition)p).name instanceof StaticPropertyName))
+            return false;
+        } else if (!(p instanceof ShorthandProperty)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Whether the expression is pure, and makes a primitive out of literals or
+   * with typeof, void or !, which never convert their operands.  Most other
+   * operators convert theirs, which calls valueOf, toString or
+   * Symbol.toPrimitive on an object, or throws for a Symbol, so they're only
+   * known to be pure when their operands are primitives like these.
+   */
+  private static boolean isPrimitive(Expression e) {
+    if (e instanceof LiteralBooleanExpression ||
+      e instanceof LiteralInfinityExpression ||
+      e instanceof LiteralNullExpression ||
+      e instanceof LiteralNumericExpression ||
+      e instanceof LiteralStringExpression)
+      return true;
+    if (e instanceof UnaryExpression) {
+      UnaryExpression ue = (UnaryExpression)e;
+      switch (ue.operator) {
+        case LogicalNot:
+        case Typeof:
+        case Void:
+          return isPure(ue.operand);
+        case Delete:
+          return false;
+        default:
+          return isPrimitive(ue.operand);
+      }
+    }
+    if (e instanceof BinaryExpression) {
+      BinaryExpression be = (BinaryExpression)e;
+      return be.operator != BinaryOperator.In &&
+        be.operator != BinaryOperator.Instanceof &&
+        isPrimitive(be.left) && isPrimitive(be.right);
+    }
+    if (e instanceof ConditionalExpression) {
+      ConditionalExpression ce = (ConditionalExpression)e;
+      return isPure(ce.test) &&
+        isPrimitive(ce.consequent) && isPrimitive(ce.alternate);
+    }
+    return false;
+  }
+
+  /** Whether defining a class runs nothing but its declaration */
+  private static boolean isPure(
+    Maybe<Expression> superClass,
+    ImmutableList<ClassElement> elements
+  ) {
+    if (superClass.isJust() && !isPure(superClass.fromJust()))
+      return false;
+    for (ClassElement element : elements) {
+      if (!(element.method.name instanceof StaticPropertyName))
+        return false;
+    }
+    return true;
+  }
+
+
+  private static class Unit {
+
+    public final boolean removable;
+    public final Set<Unit> dependencies = new HashSet<>();
+    public boolean live = false;
+
+    public Unit(boolean removable) {
+      this.removable = removable;
+    }
+
+  }
+
+}
@@ -0,0 +1,75 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Stores the results of parsing input files in a directory, keyed by a hash
+ * of the file's contents, so that later links can skip parsing and validation
+ * altogether.
+ *
+ * Entries are written to a temporary file and then renamed into place, so
+ * parallel build jobs sharing a directory only ever see complete entries.
+ * Anything unreadable (a truncated file, an older format) is treated as a
+ * miss and simply overwritten.
+ */
+class DiskCache {
+
+  // Bump this whenever the contents of cache entries change
+  private static final int FORMAT_VERSION = 1;
+  private static final String HEADER = "js-ld-cache";
+
+  private final Path directory;
+
+  public DiskCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Returns the saved entry, or null if there isn't a usable one */
+  public String read(String kind, String hash) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(entryPath(kind, hash));
+    } catch (IOException e) {
+      return null;
+    }
+
+    String contents = new String(bytes, StandardCharsets.UTF_8);
+    int headerEnd = contents.indexOf('\n');
+    if (headerEnd < 0)
+      return null;
+    String payload = contents.substring(headerEnd + 1);
+    if (!contents.substring(0, headerEnd).equals(header(payload)))
+      return null;
+    return payload;
+  }
+
+  public void write(String kind, String hash, String payload) {
+    try {
+      Files.createDirectories(directory);
+      Path tempPath = Files.createTempFile(directory, kind + "-", ".tmp");
+      try {
+        Files.write(
+          tempPath,
+          (header(payload) + '\n' + payload).getBytes(StandardCharsets.UTF_8)
+        );
+        FileUtil.replaceFile(tempPath, entryPath(kind, hash));
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
+    } catch (IOException e) {
+      // The cache is only an optimisation, so the link carries on without it
+    }
+  }
+
+  private Path entryPath(String kind, String hash) {
+    return directory.resolve(kind + "-" + hash);
+  }
+
+  private static String header(String payload) {
+    return HEADER + " " + FORMAT_VERSION + " " + payload.length();
+  }
+
+}
@@ -0,0 +1,118 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.shapesecurity.shift.utils.Utils;
+
+/**
+ * Builds the wrappers which guard calls into Wasm: once a call has thrown,
+ * Wasm mustn't be re-entered.  Each function export gets its own wrapper,
+ * taking exactly the export's parameters, so that calls through it don't
+ * allocate and its call to the export stays monomorphic.
+ *
+ * A module can have tens of thousands of exports, so the wrappers are written
+ * out as text, from a template made once for each arity, rather than being
+ * parsed, scope-analysed and printed along with the rest of the script.  The
+ * script around them mustn't rename the variables they use (getNames).
+ */
+class ExportWrappers {
+
+  // Throws the error for calls made after Wasm has thrown, so that each
+  // wrapper doesn't need its own copy of the message
+  private static final String THREW_FUNCTION = "wasmThrew";
+  // Puts a wrapper, made from the export with the given name, into the
+  // symbols object, so that each wrapper only has to name its export once
+  private static final String BIND_FUNCTION = "wasmBind";
+
+  private final String exportsVar;
+  private final String guardVar;
+  private final String symbolsVar;
+  private final String newline;
+  // The text either side of the export's name, by arity
+  private final List<String[]> templates = new ArrayList<>();
+  private final StringBuilder text = new StringBuilder();
+
+  /**
+   * @param exportsVar The variable holding the Wasm instance's exports
+   * @param guardVar The variable holding the exception from any earlier call
+   *                 which threw
+   * @param symbolsVar The variable holding the symbols object, where each
+   *                   wrapper is put
+   */
+  public ExportWrappers(
+    String exportsVar,
+    String guardVar,
+    String symbolsVar,
+    boolean minify
+  ) {
+    this.exportsVar = exportsVar;
+    this.guardVar = guardVar;
+    this.symbolsVar = symbolsVar;
+    this.newline = minify ? "" : "\n";
+  }
+
+  /** Adds the wrapper for the named export, a function taking arity params */
+  public void add(String exportName, int arity) {
+    if (text.length() == 0) {
+      text.append("function ").append(THREW_FUNCTION).append("(){")
+        .append("throw new Error(\"WebAssembly previously threw: \"+")
+        .append(guardVar).append(")}").append(newline);
+      text.append("function ").append(BIND_FUNCTION).append("(name,wrap){")
+        .append(symbolsVar).append("[name]=wrap(").append(exportsVar)
+        .append("[name])}").append(newline);
+    }
+    // wasmBind('<EXPORTED_NAME>', fn => function(p0, p1, ...) { ... });
+    String[] template = getTemplate(arity);
+    text.append(template[0])
+      .append(Utils.escapeStringLiteral(exportName))
+      .append(template[1]);
+  }
+
+  public boolean isEmpty() {
+    return text.length() == 0;
+  }
+
+  /** Returns the variables the wrappers use from the script around them */
+  public Set<String> getNames() {
+    return new HashSet<>(Arrays.asList(
+      exportsVar,
+      guardVar,
+      THREW_FUNCTION,
+      BIND_FUNCTION
+    ));
+  }
+
+  public String getText() {
+    return text.toString();
+  }
+
+  private String[] getTemplate(int arity) {
+    while (templates.size() <= arity)
+      templates.add(null);
+    String[] template = templates.get(arity);
+    if (template == null) {
+      String parameters = IntStream.range(0, arity)
+        .mapToObj(i -> "p" + i)
+        .collect(Collectors.joining(","));
+      // Each wrapper is written on one line, even when the output isn't
+      // minified, since there are so many of them
+      template = new String[] {
+        BIND_FUNCTION + "(",
+        ",fn=>function(" + parameters + "){" +
+          "if(" + guardVar + "!==undefined)" + THREW_FUNCTION + "();" +
+          "try{return fn(" + parameters + ")}" +
+          "catch(e){throw " + guardVar + "=e}" +
+          "});" + newline
+      };
+      templates.set(arity, template);
+    }
+    return template;
+  }
+
+}
@@ -6,13 +6,16 @@ import com.shapesecurity.shift.ast.*;
 import com.shapesecurity.shift.parser.JsError;
 import com.shapesecurity.shift.parser.Parser;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
-class ExportsFile {
+class ExportsFile implements JsModuleFile {
 
   private final Path path;
+  private final String hash;
   private final Module module;
   private final List<ImportSpecifier> symbolImports = new ArrayList<>();
   private final List<Import> requirementsImports = new ArrayList<>();
@@ -23,39 +26,111 @@ class ExportsFile {
     return path;
   }
 
+  public List<String> getImportedSymbols() {
+    return symbolImports.stream()
+      .map(is -> is.name.orJust(is.binding.name))
+      .collect(Collectors.toList());
+  }
+
   public ExportsFile(Path path) {
+    this(path, FileUtil.pathToBytes(path));
+  }
+
+  private ExportsFile(Path path, byte[] contents) {
+    this(
+      path,
+      new String(contents, StandardCharsets.UTF_8),
+      FileUtil.hashBytes(contents)
+    );
+  }
+
+  public ExportsFile(Path path, String source, String hash) {
+    this(path, hash, parse(path, source), true);
+  }
+
+  private ExportsFile(Path path, String hash, Module module, boolean validate) {
     this.path = path;
+    this.hash = hash;
+    this.module = module;
 
+    if (validate)
+      ModuleUtil.validateModule(module, path.toString());
+    ModuleUtil.extractImportsExports(
+      module,
+      path.toString(),
+      code,
+      symbolImports,
+      requirementsImports,
+      exports
+    );
+  }
+
+  private static Module parse(Path path, String source) {
     try {
-      module = Parser.parseModule(FileUtil.pathToString(path));
+      return Parser.parseModule(source);
     } catch (JsError e) {
       throw new LdException(
         "Error parsing exports file " + path + ": " + e,
         e
       );
     }
+  }
 
-    ModuleUtil.validateModule(module, path.toString());
-    ModuleUtil.extractImportsExports(
-      module,
-      path.toString(),
+  /** Saves the file's extracted contents, for the DiskCache */
+  public String toCacheEntry() {
+    return ModuleUtil.serializeExtractedModule(
+      module.directives,
       code,
       symbolImports,
       requirementsImports,
       exports
     );
+  }
 
+  /**
+   * Restores a file saved by toCacheEntry, which needs no validation.  The
+   * hash is the one the entry was saved under.
+   */
+  public static ExportsFile fromCacheEntry(
+    Path path,
+    String entry,
+    String hash
+  ) {
+    return new ExportsFile(
+      path,
+      hash,
+      ModuleUtil.deserializeModule(entry),
+      false
+    );
+  }
+
+  /**
+   * Adds the file's imports to the tables for a link.  The parsed file itself
+   * is left untouched, so it can be shared between links.
+   */
+  public void register(
+    SymbolTable symbolTable,
+    RequirementsTable requirementsTable
+  ) {
     for (ImportSpecifier is : symbolImports) {
-      SymbolTable.Symbol symbol = SymbolTable.INSTANCE.addUndefined(
+      SymbolTable.Symbol symbol = symbolTable.addUndefined(
         is.name.orJust(is.binding.name)
       );
       symbol.markUsed();
     }
     for (Import i : requirementsImports) {
-      RequirementsTable.INSTANCE.add(i.moduleSpecifier);
+      requirementsTable.add(i.moduleSpecifier);
     }
   }
 
+  /** Describes everything appendModule's output depends on */
+  public String describeFragment(ModuleGenerator generator) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("exports ").append(hash).append('\n');
+    generator.describeImports(this, sb, symbolImports, requirementsImports);
+    return sb.toString();
+  }
+
   public void appendModule(
     ModuleGenerator generator,
     List<Statement> statements
@@ -63,6 +138,7 @@ class ExportsFile {
     List<Statement> moduleStatements = new ArrayList<>();
 
     generator.appendImports(
+      this,
       moduleStatements,
       symbolImports,
       requirementsImports
@@ -23,11 +23,15 @@ public class ExternsFile {
   }
 
   public ExternsFile(Path path) {
+    this(path, FileUtil.pathToString(path));
+  }
+
+  public ExternsFile(Path path, String source) {
     this.path = path;
 
     Script script;
     try {
-      script = Parser.parseScript(FileUtil.pathToString(path));
+      script = Parser.parseScript(source);
     } catch (JsError e) {
       throw new LdException(
         "Error parsing externs file " + path + ": " + e,
@@ -42,4 +46,26 @@ public class ExternsFile {
     this.declarations = Collections.unmodifiableSet(declarations);
   }
 
+  private ExternsFile(Path path, Set<String> declarations) {
+    this.path = path;
+    this.declarations = Collections.unmodifiableSet(declarations);
+  }
+
+  /** Saves the file's declarations, one per line, for the DiskCache */
+  public String toCacheEntry() {
+    StringBuilder sb = new StringBuilder();
+    for (String declaration : declarations)
+      sb.append(declaration).append('\n');
+    return sb.toString();
+  }
+
+  /** Restores a file saved by toCacheEntry */
+  public static ExternsFile fromCacheEntry(Path path, String entry) {
+    Set<String> declarations = new HashSet<>();
+    for (String declaration : entry.split("\n"))
+      if (!declaration.isEmpty())
+        declarations.add(declaration);
+    return new ExternsFile(path, declarations);
+  }
+
 }
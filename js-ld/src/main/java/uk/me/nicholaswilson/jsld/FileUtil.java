@@ -2,29 +2,104 @@ package uk.me.nicholaswilson.jsld;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 class FileUtil {
 
   public static String pathToString(Path path) {
+    return new String(pathToBytes(path), StandardCharsets.UTF_8);
+  }
+
+  public static byte[] pathToBytes(Path path) {
     try {
-      byte[] encoded = Files.readAllBytes(path);
-      return new String(encoded, StandardCharsets.UTF_8);
+      return Files.readAllBytes(path);
     } catch (IOException e) {
       throw new LdException("Error reading file '" + path + "': " + e, e);
     }
   }
 
-  public static ByteBuffer pathToByteBuffer(Path path) {
+  public static long size(Path path) {
     try {
-      return ByteBuffer.wrap(Files.readAllBytes(path));
+      return Files.size(path);
+    } catch (IOException e) {
+      throw new LdException("Error reading file '" + path + "': " + e, e);
+    }
+  }
+
+  /**
+   * Maps the file into memory read-only, rather than copying it onto the
+   * heap, so that parts of the file which are never read are never loaded.
+   */
+  public static ByteBuffer pathToMappedByteBuffer(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new LdException("File '" + path + "' is too large to map");
+      // The mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
     } catch (IOException e) {
       throw new LdException("Error reading file '" + path + "': " + e, e);
     }
   }
 
+  /**
+   * Creates a temporary file next to an output file, to be renamed over it
+   * with replaceFile.  Temporary files are private to the user, which the
+   * output shouldn't be, so it's given the usual permissions for a new file.
+   */
+  public static Path createTempFileFor(Path path) throws IOException {
+    Path tempPath = Files.createTempFile(
+      path.toAbsolutePath().getParent(),
+      path.getFileName().toString() + "-",
+      ".tmp"
+    );
+    try {
+      Files.setPosixFilePermissions(
+        tempPath,
+        PosixFilePermissions.fromString("rw-r--r--")
+      );
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX filesystem, so the defaults will do
+    }
+    return tempPath;
+  }
+
+  /**
+   * Renames a finished temporary file over the target, atomically where the
+   * filesystem allows, so that readers never see a partly-written file.
+   */
+  public static void replaceFile(Path tempPath, Path path) throws IOException {
+    try {
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /** Returns a hex SHA-256 digest of the given bytes */
+  public static String hashBytes(byte[] bytes) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JRE is required to provide SHA-256
+      throw new AssertionError(e);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest(bytes))
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
 
   private FileUtil() {
   }
@@ -0,0 +1,101 @@
+package uk.me.nicholaswilson.jsld;
+
+import uk.me.nicholaswilson.jsld.wasm.WasmFunctionSignature;
+import uk.me.nicholaswilson.jsld.wasm.WasmValType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The canonical instances of the function signatures read so far.  Lookups
+ * are made straight from the value types in a module's buffer, so finding a
+ * signature that's already there doesn't allocate anything.
+ *
+ * Each table lives only as long as the read of one module's TYPE section, so
+ * a long-running server doesn't accumulate every signature it's ever seen.
+ */
+class FuncTypeTable {
+
+  // Open addressing, with linear probing; never more than half full
+  private WasmFunctionSignature[] signatures = new WasmFunctionSignature[64];
+  private int[] hashes = new int[64];
+  private int size = 0;
+
+  /**
+   * Returns the signature whose types are the bytes at the given (absolute)
+   * positions in the buffer, which have already been checked to be valid
+   * value types
+   */
+  public WasmFunctionSignature intern(
+    ByteBuffer buffer,
+    int hash,
+    int parameterTypes,
+    int numParameterTypes,
+    int resultTypes,
+    int numResultTypes
+  ) {
+    int mask = signatures.length - 1;
+    int i = hash & mask;
+    for (; signatures[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash &&
+        matches(signatures[i].parameterTypes, buffer, parameterTypes, numParameterTypes) &&
+        matches(signatures[i].resultTypes, buffer, resultTypes, numResultTypes))
+        return signatures[i];
+    }
+
+    WasmFunctionSignature signature = new WasmFunctionSignature(
+      getTypes(buffer, parameterTypes, numParameterTypes),
+      getTypes(buffer, resultTypes, numResultTypes)
+    );
+    signatures[i] = signature;
+    hashes[i] = hash;
+    if (++size * 2 > signatures.length)
+      grow();
+    return signature;
+  }
+
+  private static boolean matches(
+    List<WasmValType> types,
+    ByteBuffer buffer,
+    int position,
+    int count
+  ) {
+    if (types.size() != count)
+      return false;
+    for (int i = 0; i < count; ++i) {
+      if (types.get(i).code != (buffer.get(position + i) & 0xff))
+        return false;
+    }
+    return true;
+  }
+
+  private static List<WasmValType> getTypes(
+    ByteBuffer buffer,
+    int position,
+    int count
+  ) {
+    List<WasmValType> types = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i)
+      types.add(WasmValType.of(buffer.get(position + i)));
+    return types;
+  }
+
+  private void grow() {
+    WasmFunctionSignature[] oldSignatures = signatures;
+    int[] oldHashes = hashes;
+    signatures = new WasmFunctionSignature[oldSignatures.length * 2];
+    hashes = new int[oldHashes.length * 2];
+    int mask = signatures.length - 1;
+    for (int j = 0; j < oldSignatures.length; ++j) {
+      if (oldSignatures[j] == null)
+        continue;
+      int i = oldHashes[j] & mask;
+      while (signatures[i] != null)
+        i = (i + 1) & mask;
+      signatures[i] = oldSignatures[j];
+      hashes[i] = oldHashes[j];
+    }
+  }
+
+}
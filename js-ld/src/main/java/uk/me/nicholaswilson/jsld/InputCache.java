@@ -0,0 +1,148 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * Holds parsed input files in memory, so that a long-running linker process
+ * only has to parse each file once.  Entries are keyed by path, and are
+ * re-parsed whenever the file's contents change.  Files missing from memory
+ * are looked up in the DiskCache, if the link has one.
+ */
+class InputCache {
+
+  private static final Kind<SymbolsFile> SYMBOLS_FILE = new Kind<>(
+    SymbolsFile.class,
+    SymbolsFile::new,
+    SymbolsFile::toCacheEntry,
+    SymbolsFile::fromCacheEntry
+  );
+  private static final Kind<ExportsFile> EXPORTS_FILE = new Kind<>(
+    ExportsFile.class,
+    ExportsFile::new,
+    ExportsFile::toCacheEntry,
+    ExportsFile::fromCacheEntry
+  );
+  private static final Kind<ExternsFile> EXTERNS_FILE = new Kind<>(
+    ExternsFile.class,
+    (path, source, hash) -> new ExternsFile(path, source),
+    ExternsFile::toCacheEntry,
+    (path, entry, hash) -> ExternsFile.fromCacheEntry(path, entry)
+  );
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public SymbolsFile getSymbolsFile(Path path, DiskCache diskCache) {
+    return get(path, diskCache, SYMBOLS_FILE);
+  }
+
+  public ExportsFile getExportsFile(Path path, DiskCache diskCache) {
+    return get(path, diskCache, EXPORTS_FILE);
+  }
+
+  public ExternsFile getExternsFile(Path path, DiskCache diskCache) {
+    return get(path, diskCache, EXTERNS_FILE);
+  }
+
+  private <T> T get(Path path, DiskCache diskCache, Kind<T> kind) {
+    byte[] contents = FileUtil.pathToBytes(path);
+    String hash = FileUtil.hashBytes(contents);
+    String key = kind.name + ':' + path.toAbsolutePath().normalize();
+
+    // Links running in parallel share one entry per file, so that a file
+    // they all use is only loaded once, by whichever asks for it first.
+    Entry entry = entries.compute(
+      key,
+      (k, old) -> old != null && old.hash.equals(hash) ? old : new Entry(
+        hash,
+        new FutureTask<>(() -> load(path, contents, hash, diskCache, kind))
+      )
+    );
+    entry.value.run();
+    try {
+      return kind.type.cast(Linker.join(entry.value));
+    } catch (RuntimeException e) {
+      // Parse failures are not kept
+      entries.remove(key, entry);
+      throw e;
+    }
+  }
+
+  private static <T> T load(
+    Path path,
+    byte[] contents,
+    String hash,
+    DiskCache diskCache,
+    Kind<T> kind
+  ) {
+    if (diskCache != null) {
+      String saved = diskCache.read(kind.name, hash);
+      if (saved != null) {
+        try {
+          return kind.restorer.load(path, saved, hash);
+        } catch (RuntimeException e) {
+          // A corrupt entry; parse the file again and replace it
+        }
+      }
+    }
+
+    T value = kind.parser.load(
+      path,
+      new String(contents, StandardCharsets.UTF_8),
+      hash
+    );
+    if (diskCache != null)
+      diskCache.write(kind.name, hash, kind.saver.apply(value));
+    return value;
+  }
+
+
+  /** How to parse, save and restore one type of input file */
+  private static class Kind<T> {
+
+    public final Class<T> type;
+    public final String name;
+    public final Loader<T> parser;
+    public final Function<T, String> saver;
+    public final Loader<T> restorer;
+
+    public Kind(
+      Class<T> type,
+      Loader<T> parser,
+      Function<T, String> saver,
+      Loader<T> restorer
+    ) {
+      this.type = type;
+      this.name = type.getSimpleName();
+      this.parser = parser;
+      this.saver = saver;
+      this.restorer = restorer;
+    }
+
+  }
+
+  /**
+   * Makes a file from its source or its saved entry, along with the hash of
+   * its contents, which the file keeps rather than reading itself again.
+   */
+  private interface Loader<T> {
+    T load(Path path, String text, String hash);
+  }
+
+  private static class Entry {
+
+    public final String hash;
+    public final FutureTask<?> value;
+
+    public Entry(String hash, FutureTask<?> value) {
+      this.hash = hash;
+      this.value = value;
+    }
+
+  }
+
+}
@@ -0,0 +1,21 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import com.shapesecurity.shift.ast.Statement;
+
+/** A symbols or exports file, which is linked in as one module of the output */
+interface JsModuleFile {
+
+  Path getPath();
+
+  /** Returns the names of the symbols the module imports */
+  List<String> getImportedSymbols();
+
+  /** Describes everything appendModule's output depends on */
+  String describeFragment(ModuleGenerator generator);
+
+  void appendModule(ModuleGenerator generator, List<Statement> statements);
+
+}
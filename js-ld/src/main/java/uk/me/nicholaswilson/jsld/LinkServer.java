@@ -0,0 +1,190 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import picocli.CommandLine;
+
+/**
+ * Runs links on behalf of clients connecting over a loopback socket, so that
+ * the JVM stays warm and parsed input files are kept in memory between links.
+ *
+ * The protocol is UTF-8.  The client sends the server's token, its working
+ * directory, the number of command-line arguments, and then each argument,
+ * every one of them followed by a NUL: arguments can be empty or contain
+ * newlines, but can't contain a NUL.  The server replies with lines of
+ * diagnostics, followed by a final "exit STATUS" line.
+ *
+ * A link can read and write any file the server's user can, so the port
+ * mustn't be open to every local user.  The server makes a random token when
+ * it starts, and writes it to a file only its user can read; a client which
+ * can't read the file can't send the token, and is turned away.
+ */
+class LinkServer {
+
+  private static final int TOKEN_BYTES = 32;
+
+  private final int port;
+  private final Path tokenFilePath;
+  private final InputCache inputCache;
+  private byte[] token;
+  private final ExecutorService executor =
+    Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+  public LinkServer(int port, Path tokenFilePath, InputCache inputCache) {
+    this.port = port;
+    this.tokenFilePath = tokenFilePath;
+    this.inputCache = inputCache;
+  }
+
+  /** Accepts requests until the process is killed */
+  public void serve() {
+    writeToken();
+    try (
+      ServerSocket serverSocket =
+        new ServerSocket(port, 0, InetAddress.getLoopbackAddress())
+    ) {
+      System.out.println(
+        "js-ld listening on port " + serverSocket.getLocalPort() +
+          ", with its token in " + tokenFilePath
+      );
+      System.out.flush();
+      while (true) {
+        Socket socket = serverSocket.accept();
+        executor.execute(() -> handle(socket));
+      }
+    } catch (IOException e) {
+      throw new LdException("Unable to run server: " + e, e);
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (
+      Socket s = socket;
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)
+      );
+      PrintStream out = new PrintStream(s.getOutputStream(), true, "UTF-8")
+    ) {
+      String clientToken = readField(reader);
+      if (clientToken == null)
+        return;
+      if (!MessageDigest.isEqual(
+        clientToken.getBytes(StandardCharsets.UTF_8),
+        token
+      )) {
+        out.println("js-ld: invalid token; see " + tokenFilePath);
+        out.println("exit 1");
+        return;
+      }
+      String workingDirectory = readField(reader);
+      String argCount = readField(reader);
+      if (argCount == null)
+        return;
+      List<String> args = new ArrayList<>();
+      try {
+        for (int i = Integer.parseInt(argCount); i > 0; --i) {
+          String arg = readField(reader);
+          if (arg == null)
+            return;
+          args.add(arg);
+        }
+      } catch (NumberFormatException e) {
+        out.println("js-ld: invalid argument count " + argCount);
+        out.println("exit 1");
+        return;
+      }
+
+      int status;
+      try {
+        Linker l = new Linker(inputCache, Paths.get(workingDirectory));
+        status = l.run(
+          args.toArray(new String[0]),
+          out,
+          CommandLine.Help.Ansi.OFF
+        );
+      } catch (RuntimeException e) {
+        // Keep serving other clients whatever went wrong with this one
+        out.println(e.toString());
+        status = 1;
+      }
+      out.println("exit " + status);
+    } catch (IOException e) {
+      // The client has gone away, so there's no-one left to tell
+    }
+  }
+
+  /** Reads up to the next NUL, returning null if the client hangs up first */
+  private static String readField(Reader reader) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = reader.read()) != '\0') {
+      if (c < 0)
+        return null;
+      sb.append((char)c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Makes a new token, and writes it where clients will look for it.  The
+   * file is written privately and then moved into place, so it's never
+   * readable by anyone else, even briefly.
+   */
+  private void writeToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes)
+      sb.append(String.format("%02x", b));
+    token = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+    Path directory = tokenFilePath.toAbsolutePath().getParent();
+    try {
+      if (!Files.isDirectory(directory)) {
+        try {
+          Files.createDirectories(
+            directory,
+            PosixFilePermissions.asFileAttribute(
+              PosixFilePermissions.fromString("rwx------")
+            )
+          );
+        } catch (UnsupportedOperationException e) {
+          // Not a POSIX filesystem, so the defaults will have to do
+          Files.createDirectories(directory);
+        }
+      }
+      // Temporary files are only readable by their owner
+      Path tempPath = Files.createTempFile(
+        directory,
+        tokenFilePath.getFileName().toString() + "-",
+        ".tmp"
+      );
+      Files.write(tempPath, token);
+      FileUtil.replaceFile(tempPath, tokenFilePath);
+    } catch (IOException e) {
+      throw new LdException(
+        "Unable to write to " + tokenFilePath + ": " + e,
+        e
+      );
+    }
+  }
+
+}
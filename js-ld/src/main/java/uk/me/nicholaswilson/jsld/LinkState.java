@@ -0,0 +1,161 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What one link leaves behind for the next link of the same output: the
+ * random names chosen for the generated variables, and the generated text of
+ * each module, keyed by a hash of everything the text was generated from.
+ * Relinking with the same state regenerates only the modules whose inputs
+ * have changed, and splices in the saved text for the rest.
+ *
+ * A link without a state file uses a fresh state, which is never saved.
+ */
+class LinkState {
+
+  // Bump this whenever the generated code changes
+  private static final int FORMAT_VERSION = 1;
+  private static final String HEADER = "js-ld-state";
+
+  private final Map<String, String> names = new LinkedHashMap<>();
+  private final Map<String, String> requirementNames = new LinkedHashMap<>();
+  private final Map<String, String> previousFragments = new LinkedHashMap<>();
+  private final Map<String, String> fragments = new LinkedHashMap<>();
+  private final boolean persistent;
+
+  /** Creates a fresh state, for a link which won't be repeated */
+  public LinkState() {
+    this(false);
+  }
+
+  private LinkState(boolean persistent) {
+    this.persistent = persistent;
+  }
+
+  /**
+   * Loads the state saved by the previous link, or returns a fresh state if
+   * there isn't a usable one (a missing file, an older format).
+   */
+  public static LinkState load(Path path) {
+    LinkState state = new LinkState(true);
+    if (!Files.exists(path))
+      return state;
+    try {
+      state.parse(FileUtil.pathToString(path));
+    } catch (RuntimeException e) {
+      // Start afresh, rather than trusting a damaged file
+      return new LinkState(true);
+    }
+    return state;
+  }
+
+  /** Whether fragments are worth saving, because the state will be kept */
+  public boolean isPersistent() {
+    return persistent;
+  }
+
+  /** Returns the munged name chosen for a variable, choosing one if needed */
+  public String getName(String name) {
+    return names.computeIfAbsent(name, ModuleGenerator::mungeSymbol);
+  }
+
+  /** Returns the variable names for each requirement, by specifier */
+  public Map<String, String> getRequirementNames() {
+    return requirementNames;
+  }
+
+  public void setRequirementNames(Map<String, String> requirementNames) {
+    this.requirementNames.clear();
+    this.requirementNames.putAll(requirementNames);
+  }
+
+  /** Returns the saved text for a fragment, or null if it has to be built */
+  public String findFragment(String key) {
+    String text = fragments.get(key);
+    if (text == null) {
+      text = previousFragments.remove(key);
+      if (text != null)
+        fragments.put(key, text);
+    }
+    return text;
+  }
+
+  public void putFragment(String key, String text) {
+    fragments.put(key, text);
+  }
+
+  /**
+   * Writes out the state.  Only the fragments used by this link are kept, so
+   * the file doesn't grow without bound as the inputs change.
+   */
+  public void save(Path path) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(HEADER).append(' ').append(FORMAT_VERSION).append('\n');
+    for (Map.Entry<String, String> e : names.entrySet()) {
+      sb.append("name ").append(e.getKey()).append(' ').append(e.getValue())
+        .append('\n');
+    }
+    for (Map.Entry<String, String> e : requirementNames.entrySet()) {
+      // The specifier goes last, since it may contain spaces
+      sb.append("requirement ").append(e.getValue()).append(' ')
+        .append(e.getKey()).append('\n');
+    }
+    for (Map.Entry<String, String> e : fragments.entrySet()) {
+      sb.append("fragment ").append(e.getKey()).append(' ')
+        .append(e.getValue().length()).append('\n')
+        .append(e.getValue());
+    }
+
+    try {
+      Path directory = path.toAbsolutePath().getParent();
+      Path tempPath = Files.createTempFile(directory, "js-ld-state-", ".tmp");
+      try {
+        Files.write(tempPath, sb.toString().getBytes(StandardCharsets.UTF_8));
+        FileUtil.replaceFile(tempPath, path);
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
+    } catch (IOException e) {
+      throw new LdException("Unable to write to " + path + ": " + e, e);
+    }
+  }
+
+  private void parse(String contents) {
+    int pos = 0;
+    boolean first = true;
+    while (pos < contents.length()) {
+      int lineEnd = contents.indexOf('\n', pos);
+      if (lineEnd < 0)
+        throw new LdException("Truncated state file");
+      String line = contents.substring(pos, lineEnd);
+      pos = lineEnd + 1;
+
+      String[] parts = line.split(" ", 3);
+      if (first) {
+        if (!line.equals(HEADER + " " + FORMAT_VERSION))
+          throw new LdException("Unknown state file format");
+        first = false;
+      } else if (parts[0].equals("name") && parts.length == 3) {
+        names.put(parts[1], parts[2]);
+      } else if (parts[0].equals("requirement") && parts.length == 3) {
+        requirementNames.put(parts[2], parts[1]);
+      } else if (parts[0].equals("fragment") && parts.length == 3) {
+        int length = Integer.parseInt(parts[2]);
+        if (pos + length > contents.length())
+          throw new LdException("Truncated state file");
+        previousFragments.put(parts[1], contents.substring(pos, pos + length));
+        pos += length;
+      } else {
+        throw new LdException("Invalid state file line: " + line);
+      }
+    }
+    if (first)
+      throw new LdException("Empty state file");
+  }
+
+}
@@ -0,0 +1,233 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Measures where a link spends its time: the wall and CPU time, and the bytes
+ * allocated, by each phase, on whichever thread it runs.  Phases which run
+ * more than once (for each module, say) are added up, separately for each
+ * input file they're given.  The totals are written out as JSON for --stats.
+ *
+ * Each phase is also reported as a JFR event, when the JVM has JFR, so that
+ * links can be profiled with a recording.
+ */
+class LinkStats {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  // LinkPhaseEvent's methods, or null if there's no JFR
+  private static final MethodHandle BEGIN_EVENT = findEventMethod(
+    "begin",
+    MethodType.methodType(Object.class, String.class, String.class)
+  );
+  private static final MethodHandle COMMIT_EVENT = findEventMethod(
+    "commit",
+    MethodType.methodType(void.class, Object.class, long.class)
+  );
+
+  private final Map<String, Totals> phases = new LinkedHashMap<>();
+  private final Map<String, Long> counts = new LinkedHashMap<>();
+
+  /** Starts timing a phase, which ends when the returned Phase is closed */
+  public Phase start(String name) {
+    return new Phase(name, null);
+  }
+
+  /** Starts timing a phase for one input file */
+  public Phase start(String name, Path file) {
+    return new Phase(name, file.toString());
+  }
+
+  /** Records a count, such as the number of symbols or an output size */
+  public synchronized void count(String name, long value) {
+    counts.put(name, value);
+  }
+
+  /** Writes the statistics to the given file, as JSON */
+  public synchronized void write(Path path) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"phases\": [");
+    String separator = "\n";
+    for (Totals totals : phases.values()) {
+      sb.append(separator).append("    {");
+      sb.append("\"phase\": ").append(quote(totals.name));
+      if (totals.file != null)
+        sb.append(", \"file\": ").append(quote(totals.file));
+      sb.append(", \"count\": ").append(totals.count);
+      sb.append(", \"wallNanos\": ").append(totals.wallNanos);
+      sb.append(", \"cpuNanos\": ").append(totals.cpuNanos);
+      sb.append(", \"allocatedBytes\": ").append(totals.allocatedBytes);
+      sb.append('}');
+      separator = ",\n";
+    }
+    sb.append("\n  ],\n  \"counts\": {");
+    separator = "\n";
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      sb.append(separator).append("    ").append(quote(count.getKey()))
+        .append(": ").append(count.getValue());
+      separator = ",\n";
+    }
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        peakHeap += pool.getPeakUsage().getUsed();
+    }
+    sb.append("\n  },\n  \"memory\": {\n");
+    sb.append("    \"heapUsedBytes\": ").append(
+      ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()
+    ).append(",\n");
+    sb.append("    \"peakHeapUsedBytes\": ").append(peakHeap).append('\n');
+    sb.append("  }\n}\n");
+
+    try {
+      Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new LdException("Unable to write to " + path + ": " + e, e);
+    }
+  }
+
+  private synchronized void add(
+    String name,
+    String file,
+    long wallNanos,
+    long cpuNanos,
+    long allocatedBytes
+  ) {
+    Totals totals = phases.computeIfAbsent(
+      file == null ? name : name + "\0" + file,
+      key -> new Totals(name, file)
+    );
+    ++totals.count;
+    totals.wallNanos += wallNanos;
+    totals.cpuNanos += cpuNanos;
+    totals.allocatedBytes += allocatedBytes;
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < 0x20)
+        sb.append(String.format("\\u%04x", (int)c));
+      else
+        sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  private static long getCpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported()
+      ? THREADS.getCurrentThreadCpuTime()
+      : 0;
+  }
+
+  /** Returns the bytes allocated by the current thread, if the JVM can tell */
+  private static long getAllocatedBytes() {
+    if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+      return 0;
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean)THREADS;
+    if (!threads.isThreadAllocatedMemorySupported() ||
+      !threads.isThreadAllocatedMemoryEnabled())
+      return 0;
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static MethodHandle findEventMethod(String name, MethodType type) {
+    try {
+      // Fails to load if the JVM has no jdk.jfr.Event for it to extend
+      Class<?> eventClass =
+        Class.forName("uk.me.nicholaswilson.jsld.LinkPhaseEvent");
+      return MethodHandles.lookup().findStatic(eventClass, name, type);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  private static Object beginEvent(String name, String file) {
+    try {
+      return (Object)BEGIN_EVENT.invokeExact(name, file);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void commitEvent(Object event, long allocatedBytes) {
+    try {
+      COMMIT_EVENT.invokeExact(event, allocatedBytes);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+
+
+  /**
+   * A phase being timed, normally as the resource of a try statement around
+   * the phase's work.  The resource isn't referred to in the body, so the
+   * methods doing this suppress javac's "try" lint warning.
+   */
+  public class Phase implements AutoCloseable {
+
+    private final String name;
+    private final String file;
+    private final long startWall = System.nanoTime();
+    private final long startCpu = getCpuTime();
+    private final long startAllocated = getAllocatedBytes();
+    // The LinkPhaseEvent, if there's JFR
+    private final Object event;
+
+    private Phase(String name, String file) {
+      this.name = name;
+      this.file = file;
+      this.event = BEGIN_EVENT != null ? beginEvent(name, file) : null;
+    }
+
+    @Override
+    public void close() {
+      long allocatedBytes = getAllocatedBytes() - startAllocated;
+      add(
+        name,
+        file,
+        System.nanoTime() - startWall,
+        getCpuTime() - startCpu,
+        allocatedBytes
+      );
+      if (event != null)
+        commitEvent(event, allocatedBytes);
+    }
+
+  }
+
+
+  private static class Totals {
+
+    public final String name;
+    public final String file;
+    public long count;
+    public long wallNanos;
+    public long cpuNanos;
+    public long allocatedBytes;
+
+    public Totals(String name, String file) {
+      this.name = name;
+      this.file = file;
+    }
+
+  }
+
+}
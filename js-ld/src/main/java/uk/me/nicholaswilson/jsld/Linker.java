@@ -7,13 +7,17 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 
-import com.shapesecurity.shift.ast.Script;
-import com.shapesecurity.shift.codegen.PrettyCodeGen;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -26,7 +30,9 @@ public class Linker {
 
   enum Action {
     GENERATE_IMPORTS,
-    LINK
+    LINK,
+    SERVE,
+    BATCH
   }
 
   @Option(
@@ -45,14 +51,15 @@ public class Linker {
 
   @Option(
     names = { "-a", "--action" },
-    description = "Whether to link (LINK) or perform pre-linking analysis (GENERATE_IMPORTS)",
+    description = "Whether to link (LINK), perform pre-linking analysis " +
+      "(GENERATE_IMPORTS), run a server for repeated links (SERVE), or run " +
+      "every link in a manifest (BATCH)",
     paramLabel = "ACTION"
   )
   private Action action = Action.LINK;
 
   @Option(
     names = { "-o", "--output" },
-    required = true,
     description = "The output filename",
     paramLabel = "OUTPUT_FILE"
   )
@@ -86,39 +93,188 @@ public class Linker {
   )
   private List<Path> wasmFilePath = new ArrayList<>();
 
+  @Option(
+    names = { "--check-whole-wasm" },
+    description = "Check every section of the Wasm module, not only those " +
+      "needed for linking"
+  )
+  private boolean checkWholeWasm;
+
+  @Option(
+    names = { "--cache-dir" },
+    description = "A directory for caching parsed input files between links",
+    paramLabel = "CACHE_DIR"
+  )
+  private Path cacheDirectory;
+
+  @Option(
+    names = { "-m", "--manifest" },
+    description = "A file listing the arguments for each link in a batch, " +
+      "one link per line; quote arguments containing spaces",
+    paramLabel = "MANIFEST_FILE"
+  )
+  private Path manifestFilePath;
+
+  @Option(
+    names = { "--port" },
+    description = "The local port for the server to listen on (default: any)",
+    paramLabel = "PORT"
+  )
+  private int port = 0;
+
+  @Option(
+    names = { "--token-file" },
+    description = "The file the server writes the token clients must send " +
+      "to, readable only by its user (default: ~/.js-ld/server-token)",
+    paramLabel = "TOKEN_FILE"
+  )
+  private Path tokenFilePath =
+    Paths.get(System.getProperty("user.home"), ".js-ld", "server-token");
+
+  @Option(
+    names = { "--incremental" },
+    description = "A file for keeping state between links of the same " +
+      "output, so that only modules whose inputs have changed are generated " +
+      "again",
+    paramLabel = "STATE_FILE"
+  )
+  private Path statePath;
+
+  @Option(
+    names = { "--minify" },
+    description = "Print the output compactly, with shorter local variable " +
+      "names"
+  )
+  private boolean minify;
+
+  @Option(
+    names = { "--rewrite-wasm" },
+    description = "Write a copy of the Wasm module next to the output, " +
+      "without the exports that aren't used, and load that instead"
+  )
+  private boolean rewriteWasm;
+
+  @Option(
+    names = { "--strip-custom-sections" },
+    description = "Leave the custom sections (such as names and debug " +
+      "info) out of the copy of the Wasm module; implies --rewrite-wasm"
+  )
+  private boolean stripCustomSections;
+
+  @Option(
+    names = { "--remove-unused-functions" },
+    description = "Leave the functions that can't be called out of the " +
+      "copy of the Wasm module; implies --rewrite-wasm"
+  )
+  private boolean removeUnusedFunctions;
+
+  @Option(
+    names = { "--unguarded-exports" },
+    description = "Call every Wasm export directly, without checking that " +
+      "the module hasn't already thrown (for release builds)"
+  )
+  private boolean unguardAllExports;
+
+  @Option(
+    names = { "--unguarded-export" },
+    description = "Call the named Wasm export directly, without checking " +
+      "that the module hasn't already thrown",
+    paramLabel = "EXPORT_NAME"
+  )
+  private List<String> unguardedExports = new ArrayList<>();
+
+  @Option(
+    names = { "--embed-wasm" },
+    description = "Embed the Wasm module in the output, instead of loading " +
+      "it from a separate file"
+  )
+  private boolean embedWasm;
+
+  @Option(
+    names = { "--embed-wasm-warn-size" },
+    description = "Warn when the embedded Wasm module is bigger than this " +
+      "many bytes (default: 262144)",
+    paramLabel = "BYTES"
+  )
+  private int embedWasmWarnSize = 256 * 1024;
+
+  @Option(
+    names = { "--cache-wasm" },
+    description = "In browsers, keep the Wasm module in the Cache API, " +
+      "keyed by its content, so that later page loads neither download it " +
+      "again nor, where the browser caches the compiled code, compile it"
+  )
+  private boolean cacheWasm;
+
+  @Option(
+    names = { "--stats" },
+    description = "A file to write a JSON report to, with the time and " +
+      "memory taken by each phase of the link, and the number of symbols " +
+      "and size of the output",
+    paramLabel = "STATS_FILE"
+  )
+  private Path statsPath;
+
+  private final InputCache inputCache;
+  private final Path workingDirectory;
+  private final LinkStats stats = new LinkStats();
+
 
   /** The entry point for the linker */
   public static void main(String[] args) {
-    Linker l = new Linker();
-    CommandLine cmd = new CommandLine(l);
+    Linker l = new Linker(new InputCache(), null);
+    int status = l.run(args, System.err, CommandLine.Help.Ansi.AUTO);
+    if (status != 0)
+      System.exit(status);
+  }
+
+  /**
+   * Creates a linker for a single invocation.
+   * @param inputCache       The cache of parsed input files to use
+   * @param workingDirectory The directory to resolve relative paths against,
+   *                         or null when running directly from the command line
+   */
+  Linker(InputCache inputCache, Path workingDirectory) {
+    this.inputCache = inputCache;
+    this.workingDirectory = workingDirectory;
+  }
+
+  /** Parses the arguments and runs the action, returning the exit status */
+  int run(String[] args, PrintStream err, CommandLine.Help.Ansi ansi) {
+    CommandLine cmd = new CommandLine(this);
     cmd.setOverwrittenOptionsAllowed(true);
     try {
       List<Object> results = cmd.parseWithHandlers(
-        l.new ArgumentHandler(),
-        System.err,
-        CommandLine.Help.Ansi.AUTO,
+        new ArgumentHandler(),
+        err,
+        ansi,
         new CommandLine.DefaultExceptionHandler(),
         args
       );
       if (results.size() == 0)
-        System.exit(1);
+        return 1;
     } catch (LdException e) {
-      System.err.println(e.toString());
-      System.exit(1);
+      err.println(e.toString());
+      return 1;
     }
+    return 0;
   }
 
 
   /** Performs import file generation using the configured options */
   private void generateImports() {
-    loadSymbols();
+    SymbolTable symbolTable = new SymbolTable();
+    List<ForkJoinTask<SymbolsScanner.Symbols>> tasks =
+      load(symbolsFilePaths, "scan symbols", this::scanSymbols);
+    for (ForkJoinTask<SymbolsScanner.Symbols> task : tasks)
+      join(task).register(symbolTable);
 
     try (
       BufferedWriter writer =
         Files.newBufferedWriter(outputFilePath, StandardCharsets.UTF_8)
     ) {
-      for (String symbolName : SymbolTable.INSTANCE.symbolSet())
-        writer.append(symbolName).append('\n');
+      for (SymbolTable.Symbol symbol : symbolTable.getSymbols())
+        writer.append(symbol.getSymbolName()).append('\n');
     } catch (IOException e) {
       throw new LdException(
         "Unable to write to " + outputFilePath + ": " + e,
@@ -128,56 +284,269 @@ public class Linker {
   }
 
   /** Performs linking using the configured options */
-  private void link() {
-    List<SymbolsFile> symbolsFiles = loadSymbols();
-    List<ExportsFile> exportsFiles = loadExports();
+  @SuppressWarnings("try")
+  private void link(PrintStream err) {
+    LinkStats.Phase linkPhase = stats.start("link");
+    LinkState linkState;
+    try (LinkStats.Phase phase = stats.start("load state")) {
+      linkState =
+        statePath == null ? new LinkState() : LinkState.load(statePath);
+    }
+    SymbolTable symbolTable = new SymbolTable();
+    RequirementsTable requirementsTable =
+      new RequirementsTable(linkState.getRequirementNames());
+
+    // The inputs are all parsed in parallel, but registered strictly in
+    // order, so that errors such as duplicate symbols are reported exactly as
+    // if the inputs had been loaded one after another.
+    List<ForkJoinTask<SymbolsFile>> symbolsTasks = loadSymbols();
+    List<ForkJoinTask<ExportsFile>> exportsTasks = loadExports();
     assert(wasmFilePath.size() == 1);
-    WasmFile wasmFile = new WasmFile(wasmFilePath.get(0));
-    Set<String> externs = loadExterns();
+    ForkJoinTask<WasmFile> wasmTask = ForkJoinPool.commonPool().submit(
+      () -> {
+        try (
+          LinkStats.Phase phase = stats.start("load wasm", wasmFilePath.get(0))
+        ) {
+          return new WasmFile(wasmFilePath.get(0), checkWholeWasm);
+        }
+      }
+    );
+    List<ForkJoinTask<ExternsFile>> externsTasks = loadExterns();
+
+    List<SymbolsFile> symbolsFiles = new ArrayList<>();
+    for (ForkJoinTask<SymbolsFile> task : symbolsTasks) {
+      SymbolsFile symbolsFile = join(task);
+      try (LinkStats.Phase phase = stats.start("register")) {
+        symbolsFile.register(symbolTable, requirementsTable);
+      }
+      symbolsFiles.add(symbolsFile);
+    }
+    List<ExportsFile> exportsFiles = new ArrayList<>();
+    for (ForkJoinTask<ExportsFile> task : exportsTasks) {
+      ExportsFile exportsFile = join(task);
+      try (LinkStats.Phase phase = stats.start("register")) {
+        exportsFile.register(symbolTable, requirementsTable);
+      }
+      exportsFiles.add(exportsFile);
+    }
+    WasmFile wasmFile = join(wasmTask);
+    try (LinkStats.Phase phase = stats.start("register")) {
+      wasmFile.register(symbolTable, requirementsTable);
+    }
+    Set<String> externs = getExterns(externsTasks);
+    for (String name : unguardedExports) {
+      if (!wasmFile.hasFunctionExport(name)) {
+        throw new LdException(
+          "Unguarded export is not a function exported by the Wasm module: " +
+            name
+        );
+      }
+    }
 
     List<SymbolTable.MemoryDefinition> memoryDefinitions =
-      SymbolTable.INSTANCE.provideUndefinedMemories();
-    SymbolTable.INSTANCE.reportUndefined();
+      symbolTable.provideUndefinedMemories();
+    symbolTable.reportUndefined();
 
     String moduleName = outputFilePath.getFileName().toString()
       .replaceFirst("\\.[a-z]+$", "");
-    Script moduleScript = new ModuleGenerator(
+    Path wasmPath = wasmFile.getPath();
+    byte[] embeddedWasm = null;
+    boolean rewrite = rewriteWasm || stripCustomSections || removeUnusedFunctions;
+    if (embedWasm) {
+      try (LinkStats.Phase phase = stats.start("embed wasm")) {
+        embeddedWasm = rewrite
+          ? new WasmRewriter(
+            wasmFile.getPath(),
+            wasmFile.getNeededExports(symbolTable),
+            stripCustomSections,
+            removeUnusedFunctions
+          ).toBytes()
+          : FileUtil.pathToBytes(wasmFile.getPath());
+      }
+      if (embeddedWasm.length > embedWasmWarnSize) {
+        err.println(
+          "Warning: the embedded Wasm module is " + embeddedWasm.length +
+            " bytes, over the limit of " + embedWasmWarnSize + " bytes"
+        );
+      }
+    } else if (rewrite) {
+      Path wasmOutputPath =
+        outputFilePath.resolveSibling(moduleName + ".wasm");
+      if (wasmOutputPath.toAbsolutePath().normalize().equals(
+        wasmFile.getPath().toAbsolutePath().normalize())) {
+        throw new LdException(
+          "Rewritten Wasm module would overwrite its input: " + wasmOutputPath
+        );
+      }
+      try (LinkStats.Phase phase = stats.start("rewrite wasm")) {
+        new WasmRewriter(
+          wasmFile.getPath(),
+          wasmFile.getNeededExports(symbolTable),
+          stripCustomSections,
+          removeUnusedFunctions
+        ).write(wasmOutputPath);
+      }
+      wasmPath = wasmOutputPath;
+    }
+    String wasmCacheKey = null;
+    if (cacheWasm) {
+      if (embedWasm)
+        throw new LdException("An embedded Wasm module can't be cached");
+      try (LinkStats.Phase phase = stats.start("hash wasm")) {
+        wasmCacheKey = FileUtil.hashBytes(FileUtil.pathToBytes(wasmPath));
+      }
+    }
+    ModuleGenerator generator = new ModuleGenerator(
       symbolsFiles,
       exportsFiles,
       wasmFile,
+      wasmPath.getFileName().toString(),
+      embeddedWasm,
+      wasmCacheKey,
       memoryDefinitions,
       moduleName,
-      externs
-    ).generate();
-
-    String moduleStr = PrettyCodeGen.codeGen(moduleScript);
-    try (
-      BufferedWriter writer =
-        Files.newBufferedWriter(outputFilePath, StandardCharsets.UTF_8)
-    ) {
-      writer.write(moduleStr);
+      externs,
+      symbolTable,
+      requirementsTable,
+      linkState,
+      minify,
+      unguardAllExports,
+      new LinkedHashSet<>(unguardedExports),
+      stats
+    );
+
+    // The module is written out as it's generated, so it goes to a temporary
+    // file first, to avoid leaving a partial output if generation fails.
+    try {
+      Path tempPath = FileUtil.createTempFileFor(outputFilePath);
+      try {
+        try (
+          BufferedWriter writer =
+            Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)
+        ) {
+          try (LinkStats.Phase phase = stats.start("generate")) {
+            generator.generate(writer);
+          }
+        }
+        FileUtil.replaceFile(tempPath, outputFilePath);
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
     } catch (IOException e) {
       throw new LdException(
         "Unable to write to " + outputFilePath + ": " + e,
         e
       );
     }
+
+    if (statePath != null) {
+      try (LinkStats.Phase phase = stats.start("save state")) {
+        linkState.setRequirementNames(requirementsTable.getVariableNames());
+        linkState.save(statePath);
+      }
+    }
+    linkPhase.close();
+
+    if (statsPath != null) {
+      stats.count("symbolsFiles", symbolsFiles.size());
+      stats.count("exportsFiles", exportsFiles.size());
+      stats.count("externsFiles", externsFilePaths.size());
+      stats.count("symbols", symbolTable.size());
+      stats.count("usedSymbols", symbolTable.getUsedCount());
+      stats.count("wasmImports", wasmFile.getImportedSymbols().size());
+      stats.count(
+        "neededWasmExports",
+        wasmFile.getNeededExports(symbolTable).size()
+      );
+      stats.count("wasmInputBytes", FileUtil.size(wasmFile.getPath()));
+      stats.count(
+        "wasmOutputBytes",
+        embeddedWasm != null ? embeddedWasm.length : FileUtil.size(wasmPath)
+      );
+      stats.count("outputBytes", FileUtil.size(outputFilePath));
+      stats.write(statsPath);
+    }
   }
 
 
-  private List<SymbolsFile> loadSymbols() {
-    return symbolsFilePaths.stream()
-      .map(SymbolsFile::new)
-      .collect(Collectors.toList());
+  /**
+   * Finds the symbols in a symbols file, only parsing it if the quick scan
+   * can't tell what they are
+   */
+  private SymbolsScanner.Symbols scanSymbols(Path path) {
+    SymbolsScanner.Symbols symbols =
+      SymbolsScanner.scan(path, FileUtil.pathToString(path));
+    if (symbols != null)
+      return symbols;
+    SymbolsFile symbolsFile = inputCache.getSymbolsFile(path, getDiskCache());
+    return new SymbolsScanner.Symbols(
+      path,
+      symbolsFile.getImportedSymbols(),
+      symbolsFile.getExportedSymbols()
+    );
+  }
+
+  private List<ForkJoinTask<SymbolsFile>> loadSymbols() {
+    DiskCache diskCache = getDiskCache();
+    return load(
+      symbolsFilePaths,
+      "load symbols",
+      path -> inputCache.getSymbolsFile(path, diskCache)
+    );
   }
 
-  private List<ExportsFile> loadExports() {
-    return exportsFilePaths.stream()
-      .map(ExportsFile::new)
+  private List<ForkJoinTask<ExportsFile>> loadExports() {
+    DiskCache diskCache = getDiskCache();
+    return load(
+      exportsFilePaths,
+      "load exports",
+      path -> inputCache.getExportsFile(path, diskCache)
+    );
+  }
+
+  private List<ForkJoinTask<ExternsFile>> loadExterns() {
+    DiskCache diskCache = getDiskCache();
+    return load(
+      externsFilePaths,
+      "load externs",
+      path -> inputCache.getExternsFile(path, diskCache)
+    );
+  }
+
+  /** Starts loading each of the files in the background */
+  @SuppressWarnings("try")
+  private <T> List<ForkJoinTask<T>> load(
+    List<Path> paths,
+    String phaseName,
+    Function<Path, T> loader
+  ) {
+    return paths.stream()
+      .map(path -> ForkJoinPool.commonPool().submit(() -> {
+        try (LinkStats.Phase phase = stats.start(phaseName, path)) {
+          return loader.apply(path);
+        }
+      }))
       .collect(Collectors.toList());
   }
 
-  private Set<String> loadExterns() {
+  /** Waits for a task to finish, rethrowing any error it failed with */
+  static <T> T join(Future<T> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LdException("Interrupted while linking", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new LdException("Error while linking: " + cause, cause);
+    }
+  }
+
+  private Set<String> getExterns(List<ForkJoinTask<ExternsFile>> externsFiles) {
     Set<String> externs = new HashSet<>();
 
     // Pre-add bits that our wrappers use; users shouldn't have to declare
@@ -209,13 +578,41 @@ public class Linker {
     // Available in browsers, to refer to the window or web worker context.
     externs.add("self");
 
-    externsFilePaths.stream()
-      .map(ExternsFile::new)
-      .map(ExternsFile::getDeclarations)
-      .forEach(externs::addAll);
+    for (ForkJoinTask<ExternsFile> task : externsFiles)
+      externs.addAll(join(task).getDeclarations());
     return externs;
   }
 
+  private DiskCache getDiskCache() {
+    return cacheDirectory == null ? null : new DiskCache(cacheDirectory);
+  }
+
+  /** Makes relative paths from a server client relative to its directory */
+  private void resolvePaths() {
+    if (workingDirectory == null)
+      return;
+    if (outputFilePath != null)
+      outputFilePath = workingDirectory.resolve(outputFilePath);
+    if (cacheDirectory != null)
+      cacheDirectory = workingDirectory.resolve(cacheDirectory);
+    if (manifestFilePath != null)
+      manifestFilePath = workingDirectory.resolve(manifestFilePath);
+    if (statePath != null)
+      statePath = workingDirectory.resolve(statePath);
+    if (statsPath != null)
+      statsPath = workingDirectory.resolve(statsPath);
+    symbolsFilePaths = resolvePaths(symbolsFilePaths);
+    exportsFilePaths = resolvePaths(exportsFilePaths);
+    externsFilePaths = resolvePaths(externsFilePaths);
+    wasmFilePath = resolvePaths(wasmFilePath);
+  }
+
+  private List<Path> resolvePaths(List<Path> paths) {
+    return paths.stream()
+      .map(workingDirectory::resolve)
+      .collect(Collectors.toList());
+  }
+
 
   private class ArgumentHandler implements CommandLine.IParseResultHandler {
 
@@ -231,6 +628,37 @@ public class Linker {
       CommandLine cmd = parsedCommands.get(0);
       Linker l = Linker.this;
 
+      boolean isLink =
+        l.action == Action.LINK || l.action == Action.GENERATE_IMPORTS;
+      if (isLink && l.outputFilePath == null) {
+        throw new CommandLine.ParameterException(
+          cmd,
+          "Missing required option '--output=OUTPUT_FILE'"
+        );
+      }
+      if (isLink && l.manifestFilePath != null) {
+        throw new CommandLine.ParameterException(
+          cmd,
+          "Manifest specified for " + l.action
+        );
+      }
+      if (!isLink && l.workingDirectory != null) {
+        // Each server request or batch entry must be a single link
+        throw new CommandLine.ParameterException(
+          cmd,
+          l.action + " cannot be run from a server request or batch"
+        );
+      }
+      if (!isLink && (l.outputFilePath != null || l.statePath != null ||
+        !l.wasmFilePath.isEmpty() || !l.symbolsFilePaths.isEmpty() ||
+        !l.exportsFilePaths.isEmpty() || !l.externsFilePaths.isEmpty())) {
+        throw new CommandLine.ParameterException(
+          cmd,
+          "Input or output files specified for " + l.action
+        );
+      }
+      l.resolvePaths();
+
       switch (l.action) {
       case GENERATE_IMPORTS:
         if (!l.wasmFilePath.isEmpty()) {
@@ -261,7 +689,21 @@ public class Linker {
             "WASM_MODULE not specified for link"
           );
         }
-        l.link();
+        l.link(out);
+        break;
+
+      case SERVE:
+        new LinkServer(l.port, l.tokenFilePath, l.inputCache).serve();
+        break;
+
+      case BATCH:
+        if (l.manifestFilePath == null) {
+          throw new CommandLine.ParameterException(
+            cmd,
+            "MANIFEST_FILE not specified for batch"
+          );
+        }
+        new BatchLink(l.manifestFilePath, l.inputCache).run(out);
         break;
       }
 
@@ -0,0 +1,190 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.*;
+
+import com.shapesecurity.functional.data.Maybe;
+import com.shapesecurity.shift.ast.*;
+import com.shapesecurity.shift.codegen.CodeGen;
+import com.shapesecurity.shift.codegen.CodeRep;
+import com.shapesecurity.shift.codegen.CodeRepFactory;
+import com.shapesecurity.shift.scope.Declaration;
+import com.shapesecurity.shift.scope.GlobalScope;
+import com.shapesecurity.shift.scope.Reference;
+import com.shapesecurity.shift.scope.Scope;
+import com.shapesecurity.shift.scope.Variable;
+import com.shapesecurity.shift.visitor.Flattener;
+
+/**
+ * Prints a script compactly, giving short names to the variables declared
+ * inside its functions.  Variables in the script's global scope, including
+ * anything it leaves unbound, keep their names, so the script still links up
+ * with whatever it's nested inside.
+ *
+ * Renaming uses the scope analysis of the script, and gives up on any script
+ * with a direct eval or a with statement, since the analysis can't know what
+ * those refer to.  Shorthand properties ("{x}") aren't tracked by the analysis
+ * either, so their names are left alone wherever they're declared.
+ */
+class MinifyingCodeGen extends CodeGen {
+
+  // Reserved words, and globals which it would be confusing to shadow
+  private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+    "arguments", "await", "break", "case", "catch", "class", "const",
+    "continue", "debugger", "default", "delete", "do", "else", "enum", "eval",
+    "export", "extends", "false", "finally", "for", "function", "if",
+    "implements", "import", "in", "Infinity", "instanceof", "interface", "let",
+    "NaN", "new", "null", "package", "private", "protected", "public",
+    "return", "static", "super", "switch", "this", "throw", "true", "try",
+    "typeof", "undefined", "var", "void", "while", "with", "yield"
+  ));
+  private static final String FIRST_CHARS =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_$";
+  private static final String OTHER_CHARS = FIRST_CHARS + "0123456789";
+
+  private final Map<Node, String> renames = new IdentityHashMap<>();
+  private final Set<String> reserved = new HashSet<>();
+
+  private MinifyingCodeGen() {
+    super(new CodeRepFactory());
+  }
+
+  /**
+   * Prints the script, which was analysed as the given scope
+   * @param keptNames Names which mustn't be changed or given to any other
+   *                  variable, because code outside the script refers to them
+   */
+  public static String codeGen(
+    Script script,
+    GlobalScope scope,
+    Set<String> keptNames
+  ) {
+    MinifyingCodeGen codeGen = new MinifyingCodeGen();
+    if (!isDynamic(scope))
+      codeGen.chooseNames(script, scope, keptNames);
+    return codeGen(script, codeGen);
+  }
+
+  private static boolean isDynamic(Scope scope) {
+    // The global scope is always dynamic, so only its children count
+    for (Scope child : scope.children) {
+      if (child.dynamic || isDynamic(child))
+        return true;
+    }
+    return false;
+  }
+
+  private void chooseNames(
+    Script script,
+    GlobalScope scope,
+    Set<String> keptNames
+  ) {
+    reserved.addAll(keptNames);
+    for (Node node : Flattener.flatten(script)) {
+      if (node instanceof ShorthandProperty)
+        reserved.add(((ShorthandProperty)node).name);
+    }
+    // Everything that keeps its name must be avoided by the new names too
+    for (Variable v : scope.variables())
+      reserved.add(v.name);
+    collectKept(scope);
+
+    for (Scope child : scope.children)
+      chooseNames(child, reserved);
+  }
+
+  private void collectKept(Scope scope) {
+    for (Scope child : scope.children) {
+      for (Variable v : child.variables()) {
+        // Top-level let, const and class declarations are shared with other
+        // scripts, and variables without declarations are implicit, like
+        // "arguments".
+        if (child.type == Scope.Type.Script || v.declarations.isEmpty())
+          reserved.add(v.name);
+      }
+      collectKept(child);
+    }
+  }
+
+  /**
+   * Names the scope's variables, avoiding every name visible from the
+   * enclosing scopes, then the nested scopes in turn.  Sibling scopes can
+   * reuse the same names, since neither can see the other's variables.
+   */
+  private void chooseNames(Scope scope, Set<String> taken) {
+    Set<String> scopeTaken = new HashSet<>(taken);
+    List<Variable> variables = new ArrayList<>(scope.variables());
+    variables.sort(Comparator.comparing(v -> v.name));
+
+    int next = 0;
+    for (Variable v : variables) {
+      if (reserved.contains(v.name))
+        continue;
+      // Some declarations create a variable in two scopes (such as a class's
+      // name, visible both outside and inside the class), which must agree.
+      String name = renames.get(v.declarations.maybeHead().fromJust().node);
+      if (name == null) {
+        do {
+          name = generateName(next++);
+        } while (scopeTaken.contains(name) || KEYWORDS.contains(name));
+      }
+      scopeTaken.add(name);
+      for (Declaration d : v.declarations)
+        renames.put(d.node, name);
+      for (Reference r : v.references)
+        renames.put(r.node.<Node>either(n -> n, n -> n), name);
+    }
+
+    for (Scope child : scope.children)
+      chooseNames(child, scopeTaken);
+  }
+
+  private static String generateName(int index) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(FIRST_CHARS.charAt(index % FIRST_CHARS.length()));
+    index /= FIRST_CHARS.length();
+    while (index > 0) {
+      --index;
+      sb.append(OTHER_CHARS.charAt(index % OTHER_CHARS.length()));
+      index /= OTHER_CHARS.length();
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public CodeRep reduceIdentifierExpression(IdentifierExpression node) {
+    String name = renames.get(node);
+    return super.reduceIdentifierExpression(
+      name == null ? node : new IdentifierExpression(name)
+    );
+  }
+
+  @Override
+  public CodeRep reduceBindingIdentifier(BindingIdentifier node) {
+    String name = renames.get(node);
+    return super.reduceBindingIdentifier(
+      name == null ? node : new BindingIdentifier(name)
+    );
+  }
+
+  @Override
+  public CodeRep reduceBindingPropertyIdentifier(
+    BindingPropertyIdentifier node,
+    CodeRep binding,
+    Maybe<CodeRep> init
+  ) {
+    if (!renames.containsKey(node.binding))
+      return super.reduceBindingPropertyIdentifier(node, binding, init);
+    // "{x} = o" names both the property and the binding, so once the binding
+    // is renamed the property has to be given separately, as "{x: a} = o".
+    CodeRep target = binding;
+    if (init.isJust()) {
+      target = super.reduceBindingWithDefault(
+        new BindingWithDefault(node.binding, node.init.fromJust()),
+        binding,
+        init.fromJust()
+      );
+    }
+    return seqVA(factory.token(node.binding.name), factory.token(":"), target);
+  }
+
+}
@@ -1,18 +1,20 @@
 package uk.me.nicholaswilson.jsld;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.shapesecurity.functional.data.ImmutableList;
 import com.shapesecurity.functional.data.Maybe;
 import com.shapesecurity.shift.ast.*;
+import com.shapesecurity.shift.codegen.PrettyCodeGen;
 import com.shapesecurity.shift.scope.GlobalScope;
 import com.shapesecurity.shift.scope.ScopeAnalyzer;
-import com.shapesecurity.shift.scope.Variable;
 import uk.me.nicholaswilson.jsld.SymbolTable.MemoryDefinition;
 import uk.me.nicholaswilson.jsld.wasm.WasmLimits;
 import uk.me.nicholaswilson.jsld.wasm.WasmObjectType;
@@ -26,58 +28,129 @@ class ModuleGenerator {
   // an absolute minimum any pollution of the namespace that modules are nested
   // inside, and use underscores for those symbols to make sure.
   public static final String ROOT_VAR = dontMungeSymbol("__root");
-  public static final String FETCHER_VAR = mungeSymbol("__fetcher");
   public static final String EXPORTS_VAR = dontMungeSymbol("__exports");
-  public static final String SYMBOLS_VAR = mungeSymbol("__symbols");
-  public static final String LATE_BINDER_VAR = mungeSymbol("__lateBind");
+
+  // The munged names are chosen afresh for each output, but kept by the
+  // LinkState from one link to the next, so that saved fragments stay valid.
+  private final String wasmModuleVar;
+  private final String symbolsVar;
+  private final String lateBinderVar;
 
   private List<Statement> scriptStatements = new ArrayList<>();
-  private final List<SymbolsFile> symbolsFiles;
-  private final List<ExportsFile> exportsFiles;
+  // Builds the text of each module, by the marker statement standing in for it
+  private final Map<String, Supplier<String>> fragments = new LinkedHashMap<>();
+  private final Set<String> bannedVariables = new LinkedHashSet<>();
+  // Variables which text written into the script refers to by name
+  private final Set<String> textNames = new HashSet<>();
+  private final ModuleOrder moduleOrder;
   private final WasmFile wasmFile;
+  private final String wasmFileName;
+  private final byte[] embeddedWasm;
+  private final String wasmCacheKey;
   private final List<MemoryDefinition> memoryDefinitions;
   private final String moduleName;
   private final Set<String> externs;
+  private final SymbolTable symbolTable;
+  private final RequirementsTable requirementsTable;
+  private final LinkState linkState;
+  private final boolean minify;
+  private final boolean unguardAllExports;
+  private final Set<String> unguardedExports;
+  private final LinkStats stats;
 
   public ModuleGenerator(
     List<SymbolsFile> symbolsFiles,
     List<ExportsFile> exportsFiles,
     WasmFile wasmFile,
+    String wasmFileName,
+    byte[] embeddedWasm,
+    String wasmCacheKey,
     List<MemoryDefinition> memoryDefinitions,
     String moduleName,
-    Set<String> externs
+    Set<String> externs,
+    SymbolTable symbolTable,
+    RequirementsTable requirementsTable,
+    LinkState linkState,
+    boolean minify,
+    boolean unguardAllExports,
+    Set<String> unguardedExports,
+    LinkStats stats
   ) {
-    this.symbolsFiles = symbolsFiles;
-    this.exportsFiles = exportsFiles;
+    List<JsModuleFile> modules = new ArrayList<>(symbolsFiles);
+    modules.addAll(exportsFiles);
+    this.moduleOrder = new ModuleOrder(modules, wasmFile, symbolTable);
     this.wasmFile = wasmFile;
+    this.wasmFileName = wasmFileName;
+    this.embeddedWasm = embeddedWasm;
+    this.wasmCacheKey = wasmCacheKey;
     this.memoryDefinitions = memoryDefinitions;
     this.moduleName = moduleName;
     this.externs = externs;
+    this.symbolTable = symbolTable;
+    this.requirementsTable = requirementsTable;
+    this.linkState = linkState;
+    this.minify = minify;
+    this.unguardAllExports = unguardAllExports;
+    this.unguardedExports = unguardedExports;
+    this.stats = stats;
+    this.wasmModuleVar = linkState.getName("__wasmModule");
+    this.symbolsVar = linkState.getName("__symbols");
+    this.lateBinderVar = linkState.getName("__lateBind");
+  }
+
+  public SymbolTable getSymbolTable() {
+    return symbolTable;
+  }
+
+  public String getSymbolsVar() {
+    return symbolsVar;
   }
 
-  public Script generate() {
+  public String getLateBinderVar() {
+    return lateBinderVar;
+  }
+
+  /**
+   * Writes out the module.  Only the skeleton of the script is built as a
+   * whole; each symbols or exports module is then generated and written in
+   * turn, so that only one module's code is held in memory at a time.  If an
+   * error is found partway through, the output is incomplete and should be
+   * discarded.
+   */
+  public void generate(Writer out) throws IOException {
     generatePreamble();
-    generateJsSymbols();
-    generateJsExports();
+    generateJsModules(scriptStatements, moduleOrder.getBeforeInstantiation());
     generatePostamble();
     generateWrapper();
     Script script = generateScript();
-    analyzeExterns(script);
-    return script;
-  }
+    Set<String> keptNames = getFactoryNames();
+    keptNames.addAll(textNames);
+    String scriptText = codeGen(
+      script,
+      analyzeExterns(script, fragments.keySet()),
+      keptNames
+    );
 
-  private void analyzeExterns(Script script) {
-    // Run the scope analyzer to detect for any dodgy use of global variables
-    // that shouldn't be allowed (eg a global variable leak).
-    GlobalScope scope = ScopeAnalyzer.analyze(script);
-    List<Variable> bannedVariables = scope.variables().stream()
-      .filter(v -> !externs.contains(v.name))
-      .collect(Collectors.toList());
+    int pos = 0;
+    for (Map.Entry<String, Supplier<String>> fragment : fragments.entrySet()) {
+      String marker = fragment.getKey();
+      int markerPos = scriptText.indexOf(marker, pos);
+      assert(markerPos >= 0);
+      out.write(scriptText, pos, markerPos - pos);
+      out.write(fragment.getValue().get());
+      pos = markerPos + marker.length();
+      // Compact output leaves off the semicolon after a block's last statement
+      if (scriptText.startsWith(";", pos))
+        ++pos;
+      if (scriptText.startsWith("\n", pos))
+        ++pos;
+    }
+    out.write(scriptText, pos, scriptText.length() - pos);
 
     if (!bannedVariables.isEmpty()) {
       StringBuilder sb = new StringBuilder();
-      for (Variable variable : bannedVariables) {
-        sb.append("\n  ").append(variable.name);
+      for (String name : bannedVariables) {
+        sb.append("\n  ").append(name);
       }
       throw new LdException(
         "Error - module contains unbound variables:" + sb.toString()
@@ -85,29 +158,160 @@ class ModuleGenerator {
     }
   }
 
+  @SuppressWarnings("try")
+  private GlobalScope analyzeExterns(Script script, Set<String> boundNames) {
+    // Run the scope analyzer to detect for any dodgy use of global variables
+    // that shouldn't be allowed (eg a global variable leak).
+    try (LinkStats.Phase phase = stats.start("analyze scopes")) {
+      GlobalScope scope = ScopeAnalyzer.analyze(script);
+      scope.variables().stream()
+        .map(v -> v.name)
+        .filter(name -> !externs.contains(name) && !boundNames.contains(name))
+        .forEachOrdered(bannedVariables::add);
+      return scope;
+    }
+  }
+
+  @SuppressWarnings("try")
+  private String codeGen(
+    Script script,
+    GlobalScope scope,
+    Set<String> keptNames
+  ) {
+    try (LinkStats.Phase phase = stats.start("codegen")) {
+      if (!minify)
+        return PrettyCodeGen.codeGen(script);
+      return MinifyingCodeGen.codeGen(script, scope, keptNames);
+    }
+  }
+
+  /**
+   * Adds one module to the script.  The script only gets a marker statement
+   * where the module goes, and the module's text is built separately when
+   * it's written out.  This also allows the text to be saved in the LinkState
+   * and reused by the next link, provided the description of its inputs
+   * hasn't changed.
+   */
+  private void appendFragment(
+    List<Statement> statements,
+    Supplier<String> description,
+    Consumer<List<Statement>> generator
+  ) {
+    String marker = mungeSymbol("__fragment");
+    fragments.put(marker, () -> buildFragment(description, generator));
+    statements.add(new ExpressionStatement(new IdentifierExpression(marker)));
+  }
+
+  /**
+   * Adds a line comment to the script, which is written out in place of a
+   * marker statement, like a module
+   */
+  private void appendComment(List<Statement> statements, String comment) {
+    appendText(statements, "__comment", () -> "// " + comment + "\n");
+  }
+
+  /**
+   * Adds text to the script, written out in place of a marker statement, like
+   * a module.  The text isn't checked or minified, so any variables it uses
+   * from the script around it have to be in textNames.
+   */
+  private void appendText(
+    List<Statement> statements,
+    String markerName,
+    Supplier<String> text
+  ) {
+    String marker = mungeSymbol(markerName);
+    fragments.put(marker, text);
+    statements.add(new ExpressionStatement(new IdentifierExpression(marker)));
+  }
+
+  @SuppressWarnings("try")
+  private String buildFragment(
+    Supplier<String> description,
+    Consumer<List<Statement>> generator
+  ) {
+    String key = null;
+    if (linkState.isPersistent()) {
+      key = FileUtil.hashBytes(
+        (describeContext() + description.get()).getBytes(StandardCharsets.UTF_8)
+      );
+      String text = linkState.findFragment(key);
+      if (text != null)
+        return text;
+    }
+
+    List<Statement> statements = new ArrayList<>();
+    try (LinkStats.Phase phase = stats.start("build module")) {
+      generator.accept(statements);
+    }
+    ImmutableList<Statement> fragmentStatements =
+      ImmutableList.from(statements);
+    // The module is nested inside the factory function, so it can see the
+    // factory's parameters and the variables declared by the preamble.
+    GlobalScope scope = analyzeExterns(
+      new Script(
+        ImmutableList.of(new Directive("use strict")),
+        fragmentStatements
+      ),
+      getFactoryNames()
+    );
+    String text = codeGen(
+      new Script(ImmutableList.empty(), fragmentStatements),
+      scope,
+      Collections.emptySet()
+    );
+    // Compact output leaves off the semicolon after the last statement
+    if (minify && !text.isEmpty() && !text.endsWith(";"))
+      text += ";";
+    if (key != null)
+      linkState.putFragment(key, text);
+    return text;
+  }
+
+  /** Describes the inputs common to all fragments */
+  private String describeContext() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(symbolsVar).append(' ').append(lateBinderVar).append('\n');
+    sb.append("minify ").append(minify).append('\n');
+    externs.stream().sorted().forEachOrdered(e -> sb.append(e).append(' '));
+    return sb.append('\n').toString();
+  }
+
+  private Set<String> getFactoryNames() {
+    Set<String> names = new HashSet<>(Arrays.asList(
+      ROOT_VAR, wasmModuleVar, EXPORTS_VAR, symbolsVar, lateBinderVar
+    ));
+    names.addAll(requirementsTable.getVariableNames().values());
+    return names;
+  }
+
 
   private void generatePreamble() {
     ModuleUtil.appendFragment(
       scriptStatements,
       "const " + EXPORTS_VAR + " = {};" +
-        "const " + SYMBOLS_VAR + " = {};"
+        "const " + symbolsVar + " = {};"
     );
-
-    // Hah, this needs some explanation!  Modules in general have circular
-    // dependencies (eg. Wasm has to import some symbols from JS, and JS has to
-    // import from Wasm).  Modules could also import symbols from each other in
-    // a loop - which is completely fine, we just have to bind the symbols in
-    // one pass, before any of them are actually used.  To break the circle, I'm
-    // using a fancy trick with Proxy objects.  The idea is to use a proxy as
-    // the initial value for imported symbols, and rebind the variable to the
-    // correct definition after all modules have provided their exports!  We do
-    // this using the __lateBind helper, which builds the proxy.  It should take
-    // a binder function, which lazily looks up the symbol (and as a cute
-    // optimisation, rebinds the symbol too so the proxy is only used for the
-    // initial call!).
+    generateMemories();
+
+    // Hah, this needs some explanation!  Modules can have circular
+    // dependencies (eg. Wasm has to import some symbols from JS, which import
+    // from Wasm).  Modules could also import symbols from each other in a
+    // loop - which is completely fine, we just have to bind the symbols in one
+    // pass, before any of them are actually used.  Modules are ordered so that
+    // everything else can be bound directly (see ModuleOrder), but to break
+    // each circle, I'm using a fancy trick with Proxy objects.  The idea is to
+    // use a proxy as the initial value for imported symbols, and rebind the
+    // variable to the correct definition after all modules have provided their
+    // exports!  We do this using the __lateBind helper, which builds the proxy.
+    // It should take a binder function, which lazily looks up the symbol (and
+    // as a cute optimisation, rebinds the symbol too so the proxy is only used
+    // for the initial call!).
+    if (!moduleOrder.hasLateBindings())
+      return;
     ModuleUtil.appendFragment(
       scriptStatements,
-      "function " + LATE_BINDER_VAR + "(binder, isCallable) {" +
+      "function " + lateBinderVar + "(binder, isCallable) {" +
         // The fakeTarget won't ever by used for anything; it's replaced by the
         // real target below.  However, bizarrely and sadly, we can't just use
         // "{}" as the fake target - it needs to be a callable since the proxy's
@@ -129,65 +333,62 @@ class ModuleGenerator {
     );
   }
 
-  private void generateJsSymbols() {
-    for (SymbolsFile symbolsFile : symbolsFiles) {
-      symbolsFile.appendModule(this, scriptStatements);
-    }
-  }
-
-  private void generateJsExports() {
-    for (ExportsFile exportsFile : exportsFiles) {
-      exportsFile.appendModule(this, scriptStatements);
+  private void generateJsModules(
+    List<Statement> statements,
+    List<JsModuleFile> modules
+  ) {
+    for (JsModuleFile module : modules) {
+      appendFragment(
+        statements,
+        () -> module.describeFragment(this),
+        moduleStatements -> module.appendModule(this, moduleStatements)
+      );
     }
   }
 
   private void generatePostamble() {
-    // Construct an expression that will calculate the file path for the WASM
-    // module, relative to the current scriptStatements, and using the filename it has
-    // on disk right now.
-    String wasmFileName = wasmFile.getPath().getFileName().toString();
+    // The WASM module is already being fetched and compiled by the wrapper,
+    // so it only has to be waited for.
     CallExpression ce = new CallExpression(
-      new IdentifierExpression(FETCHER_VAR),
-      ImmutableList.of(new LiteralStringExpression(wasmFileName))
-    );
-
-    ce = new CallExpression(
-      new StaticMemberExpression("then", ce),
-      ImmutableList.of(ModuleUtil.parseFragmentExpression(
-        "function(bytes) { return WebAssembly.compile(bytes); }"
-      ))
-    );
-
-    ce = new CallExpression(
-      new StaticMemberExpression("then", ce),
+      new StaticMemberExpression("then", new IdentifierExpression(wasmModuleVar)),
       ImmutableList.of(generateInstantiation())
     );
 
     String wasmInstanceVar = "wasmInstance";
     String exportsVar = "es";
-    String wrapperFunctionVar = "wrapExport";
+    String guardVar = "wasmEx";
     List<Statement> wasmInstanceStatements = new ArrayList<>();
+    if (unguardAllExports) {
+      appendComment(
+        wasmInstanceStatements,
+        "Release mode: Wasm exports are called without the re-entrancy guard"
+      );
+    } else if (!unguardedExports.isEmpty()) {
+      appendComment(
+        wasmInstanceStatements,
+        "Wasm exports called without the re-entrancy guard: " +
+          String.join(", ", unguardedExports)
+      );
+    }
     ModuleUtil.appendFragment(
       wasmInstanceStatements,
       "const es = wasmInstance.exports;" +
-        "let wasmEx;" +
-        "function wrapExport(name) {" +
-        "  const fn = es[name];" +
-        "  return function(...args) {" +
-        // Should not re-enter WebAssembly after something fails within!
-        "    if (wasmEx !== undefined)" +
-        "      throw new Error('WebAssembly previously threw: ' + wasmEx);" +
-        "    try { return fn(...args); } catch (e) {" +
-        "      wasmEx = e; throw e;" +
-        "    }" +
-        "  }" +
-        "}"
+        (unguardAllExports ? "" : "let wasmEx;")
     );
+    ExportWrappers wrappers =
+      new ExportWrappers(exportsVar, guardVar, symbolsVar, minify);
     wasmFile.appendExports(
       wasmInstanceStatements,
       exportsVar,
-      wrapperFunctionVar
+      name -> !unguardAllExports && !unguardedExports.contains(name),
+      wrappers,
+      symbolsVar,
+      symbolTable
     );
+    if (!wrappers.isEmpty()) {
+      appendText(wasmInstanceStatements, "__wrappers", wrappers::getText);
+      textNames.addAll(wrappers.getNames());
+    }
     if (wasmFile.getNeedsExternalCallCtors()) {
       wasmInstanceStatements.add(new ExpressionStatement(
         new CallExpression(
@@ -199,10 +400,6 @@ class ModuleGenerator {
         )
       ));
     }
-    ModuleUtil.appendFragment(
-      wasmInstanceStatements,
-      "return Object.freeze(" + EXPORTS_VAR + ");"
-    );
     ce = new CallExpression(
       new StaticMemberExpression("then", ce),
       ImmutableList.of(
@@ -221,12 +418,37 @@ class ModuleGenerator {
       )
     );
 
+    // The modules which import from Wasm run once its exports are bound, in a
+    // separate function so that they can't see the variables declared above.
+    List<Statement> linkedStatements = new ArrayList<>();
+    generateJsModules(linkedStatements, moduleOrder.getAfterInstantiation());
+    ModuleUtil.appendFragment(
+      linkedStatements,
+      "return Object.freeze(" + EXPORTS_VAR + ");"
+    );
+    ce = new CallExpression(
+      new StaticMemberExpression("then", ce),
+      ImmutableList.of(
+        new FunctionExpression(
+          Maybe.empty(),
+          false,
+          new FormalParameters(ImmutableList.empty(), Maybe.empty()),
+          new FunctionBody(
+            ImmutableList.empty(),
+            ImmutableList.from(linkedStatements)
+          )
+        )
+      )
+    );
+
     scriptStatements.add(new ReturnStatement(Maybe.of(ce)));
   }
 
-  private Expression generateInstantiation() {
-    String moduleVar = "wasmModule";
-    List<Statement> instantiationStatements = new ArrayList<>();
+  /**
+   * Creates the memories the Wasm module imports but nothing defines.  They
+   * don't depend on anything, so they're created before any module runs.
+   */
+  private void generateMemories() {
     for (MemoryDefinition memoryDefinition : memoryDefinitions) {
       // __symbols['<MEMORY_NAME>'] = new WebAssembly.Memory(limit)
       WasmLimits limits = memoryDefinition.signature.limits;
@@ -245,11 +467,11 @@ class ModuleGenerator {
           limitProperties
         );
       }
-      instantiationStatements.add(new ExpressionStatement(
+      scriptStatements.add(new ExpressionStatement(
         new AssignmentExpression(
           new ComputedMemberExpression(
             new LiteralStringExpression(memoryDefinition.name),
-            new IdentifierExpression(ModuleGenerator.SYMBOLS_VAR)
+            new IdentifierExpression(symbolsVar)
           ),
           new NewExpression(
             new StaticMemberExpression(
@@ -261,6 +483,57 @@ class ModuleGenerator {
         )
       ));
     }
+  }
+
+  /**
+   * Returns a browser fetcher which keeps the Wasm module in the Cache API,
+   * under its URL with the content hash added.  The browser may also cache
+   * the code it compiles from a cached response, so that a repeat visit needs
+   * neither the download nor the compile.  Without the Cache API (for example
+   * on an insecure origin) it just fetches the module each time.
+   */
+  private String generateCachingFetcher() {
+    String hash = "'" + wasmCacheKey + "'";
+    return "function(name) {" +
+      "  const url = new root.URL(name,currentScript).toString();" +
+      "  const key = new root.URL(url);" +
+      "  key.searchParams.set('js-ld', " + hash + ");" +
+      "  const opened = root.caches" +
+      "    ? root.caches.open('js-ld').catch(function() { return null; })" +
+      "    : Promise.resolve(null);" +
+      "  return opened.then(function(cache) {" +
+      "    if (!cache)" +
+      "      return root.fetch(url).then(compileResponse);" +
+      "    return cache.match(key.toString()).catch(function() {})" +
+      "      .then(function(cached) {" +
+      "        if (cached)" +
+      "          return compileResponse(cached);" +
+      "        return root.fetch(url).then(function(response) {" +
+      "          if (response.ok) {" +
+      "            cache.put(key.toString(), response.clone())" +
+      "              .then(function() { return cache.keys(); })" +
+      "              .then(function(requests) {" +
+      // Drop the entries for any earlier versions of the module
+      "                requests.forEach(function(request) {" +
+      "                  const old = new root.URL(request.url);" +
+      "                  if (old.searchParams.get('js-ld') === " + hash + ")" +
+      "                    return;" +
+      "                  old.searchParams.delete('js-ld');" +
+      "                  if (old.toString() === url)" +
+      "                    cache.delete(request);" +
+      "                });" +
+      "              }).catch(function() {});" +
+      "          }" +
+      "          return compileResponse(response);" +
+      "        });" +
+      "      });" +
+      "  });" +
+      "}";
+  }
+
+  private Expression generateInstantiation() {
+    String moduleVar = "wasmModule";
+    List<Statement> instantiationStatements = new ArrayList<>();
     instantiationStatements.add(new ReturnStatement(
       Maybe.of(
         new CallExpression(
@@ -273,10 +546,10 @@ class ModuleGenerator {
             new ObjectExpression(
               ImmutableList.cons(
                 new DataProperty(
-                  new IdentifierExpression(SYMBOLS_VAR),
+                  new IdentifierExpression(symbolsVar),
                   new StaticPropertyName(WasmFile.SYMBOLS_MODULE)
                 ),
-                wasmFile.getImports()
+                wasmFile.getImports(requirementsTable)
               )
             )
           )
@@ -298,7 +571,7 @@ class ModuleGenerator {
   }
 
   private void generateWrapper() {
-    List<ImportSpecifier> imports = RequirementsTable.INSTANCE.getImports();
+    List<ImportSpecifier> imports = requirementsTable.getImports();
 
     String factoryVar = "factory";
 
@@ -313,25 +586,91 @@ class ModuleGenerator {
         "           self.Array !== undefined) {" +
         "  root = self;" +
         "} else throw new Error('Unable to detect global object');" +
-        "const define = root.define;" +
+        "const define = root.define;"
+    );
+    Expression wasmModule;
+    if (embeddedWasm == null) {
+      ModuleUtil.appendFragment(
+        umdFunctionBody,
         // Bind in all the bits that depend on document.currentScript, which
         // we have to capture *now*, rather than asynchronously inside the
         // module-factory itself.
         "const currentScript = isNode ? __dirname " +
-        "                             : root.document.currentScript.src;" +
-        "const fetcher = isNode ? function(name) {" +
-        "  const fs = require('fs'), path = require('path');" +
-        "  const buf = fs.readFileSync(path.join(currentScript, name));" +
-        // Cargo-culting, apparently Node buffers can be re-used in a pool...
-        "  const copy = buf.buffer.slice(buf.byteOffset, buf.byteOffset + buf.byteLength);\n" +
-        "  return Promise.resolve(copy);" +
-        "} : function(name) {" +
-        "  const url = new root.URL(name,currentScript);" +
-        "  return root.fetch(url.toString()).then(function(response) {" +
-        "    return response.arrayBuffer();" +
-        "  });" +
-        "};" +
-        "factory = factory.bind(null, root, fetcher);"
+          "                             : root.document.currentScript.src;" +
+          // The fetcher gives the compiled Wasm module.  Browsers compile it
+          // while it downloads, unless the server doesn't send the MIME type
+          // that streaming compilation insists on, or it isn't supported.
+          "const compileResponse = function(response) {" +
+          "  const type = response.headers.get('Content-Type') || '';" +
+          "  if (typeof WebAssembly.compileStreaming === 'function' &&" +
+          "      type.trim().toLowerCase() === 'application/wasm')" +
+          "    return WebAssembly.compileStreaming(response);" +
+          "  return response.arrayBuffer().then(function(bytes) {" +
+          "    return WebAssembly.compile(bytes);" +
+          "  });" +
+          "};" +
+          "const fetcher = isNode ? function(name) {" +
+          "  const fs = require('fs'), path = require('path');" +
+          "  const buf = fs.readFileSync(path.join(currentScript, name));" +
+          // Cargo-culting, apparently Node buffers can be re-used in a pool...
+          "  const copy = buf.buffer.slice(buf.byteOffset, buf.byteOffset + buf.byteLength);\n" +
+          "  return WebAssembly.compile(copy);" +
+          "} : " + (wasmCacheKey == null
+            ? "function(name) {" +
+              "  const url = new root.URL(name,currentScript);" +
+              "  return root.fetch(url.toString()).then(compileResponse);" +
+              "}"
+            : generateCachingFetcher()) + ";"
+      );
+      // fetcher("<WASM_FILE>")
+      wasmModule = new CallExpression(
+        new IdentifierExpression("fetcher"),
+        ImmutableList.of(new LiteralStringExpression(wasmFileName))
+      );
+    } else {
+      // The embedded module is in base64, which both Node and browsers can
+      // decode natively.
+      ModuleUtil.appendFragment(
+        umdFunctionBody,
+        "const decode = isNode ? function(text) {" +
+          "  return root.Buffer.from(text, 'base64');" +
+          "} : function(text) {" +
+          "  const binary = root.atob(text);" +
+          "  const bytes = new Uint8Array(binary.length);" +
+          "  for (let i = 0; i < binary.length; ++i)" +
+          "    bytes[i] = binary.charCodeAt(i);" +
+          "  return bytes;" +
+          "};"
+      );
+      // WebAssembly.compile(decode("<WASM_BASE64>"))
+      wasmModule = new CallExpression(
+        new StaticMemberExpression(
+          "compile",
+          new IdentifierExpression("WebAssembly")
+        ),
+        ImmutableList.of(new CallExpression(
+          new IdentifierExpression("decode"),
+          ImmutableList.of(new LiteralStringExpression(
+            Base64.getEncoder().encodeToString(embeddedWasm)
+          ))
+        ))
+      );
+    }
+    // Start on the WASM module straight away, rather than once the factory
+    // runs, so that under AMD it downloads alongside the dependencies.
+    umdFunctionBody.add(new VariableDeclarationStatement(new VariableDeclaration(
+      VariableDeclarationKind.Const,
+      ImmutableList.of(new VariableDeclarator(
+        new BindingIdentifier("wasmModule"),
+        Maybe.of(wasmModule)
+      ))
+    )));
+    ModuleUtil.appendFragment(
+      umdFunctionBody,
+      // Any failure is reported through the factory's promise; until the
+      // factory runs, it mustn't be reported as unhandled.
+      "wasmModule.catch(function() {});" +
+        "factory = factory.bind(null, root, wasmModule);"
     );
     Statement umdAmdBranch = new ExpressionStatement(
       // define("<OUTPUT_NAME>", ["IMPORTS_FROM"], factory);
@@ -412,7 +751,7 @@ class ModuleGenerator {
       )
     );
 
-    // function(__root, __fetcher, IMPORTS_AS) {
+    // function(__root, __wasmModule, IMPORTS_AS) {
     //   <BODY>
     // }
     Expression factoryExpression = new FunctionExpression(
@@ -422,7 +761,7 @@ class ModuleGenerator {
         ImmutableList.cons(
           new BindingIdentifier(ROOT_VAR),
           ImmutableList.cons(
-            new BindingIdentifier(FETCHER_VAR),
+            new BindingIdentifier(wasmModuleVar),
             ImmutableList.from(
               imports.stream()
                 .map(i -> i.binding.name)
@@ -467,6 +806,7 @@ class ModuleGenerator {
   }
 
   public void appendImports(
+    JsModuleFile module,
     List<Statement> statementsOut,
     List<ImportSpecifier> symbolImports,
     List<Import> requirementsImports
@@ -474,7 +814,7 @@ class ModuleGenerator {
     List<VariableDeclarator> requirementsDeclarators = new ArrayList<>();
     for (Import i : requirementsImports) {
       RequirementsTable.Requirement r =
-        RequirementsTable.INSTANCE.get(i.moduleSpecifier);
+        requirementsTable.get(i.moduleSpecifier);
       if (i.defaultBinding.isJust() &&
         !i.defaultBinding.fromJust().name.equals(r.variableName)) {
         requirementsDeclarators.add(
@@ -506,13 +846,42 @@ class ModuleGenerator {
       ));
     }
 
-    if (!symbolImports.isEmpty()) {
+    // Symbols from modules which have already run are read directly, and
+    // only those from modules in a cycle with this one are bound late.
+    List<ImportSpecifier> directImports = new ArrayList<>();
+    List<ImportSpecifier> lateImports = new ArrayList<>();
+    for (ImportSpecifier is : symbolImports) {
+      if (moduleOrder.isLateBound(module, is.name.orJust(is.binding.name)))
+        lateImports.add(is);
+      else
+        directImports.add(is);
+    }
+    if (!directImports.isEmpty()) {
+      statementsOut.add(new VariableDeclarationStatement(
+        // const <NAME> = __symbols['<IMPORTED_NAME>'], ...
+        new VariableDeclaration(
+          VariableDeclarationKind.Const,
+          ImmutableList.from(
+            directImports.stream()
+              .map(is -> new VariableDeclarator(
+                new BindingIdentifier(is.binding.name),
+                Maybe.of(new ComputedMemberExpression(
+                  new LiteralStringExpression(is.name.orJust(is.binding.name)),
+                  new IdentifierExpression(symbolsVar)
+                ))
+              ))
+              .collect(Collectors.toList())
+          )
+        )
+      ));
+    }
+    if (!lateImports.isEmpty()) {
       statementsOut.add(new VariableDeclarationStatement(
         // let <NAME>, ...
         new VariableDeclaration(
           VariableDeclarationKind.Let,
           ImmutableList.from(
-            symbolImports.stream()
+            lateImports.stream()
               .map(is -> new VariableDeclarator(
                 new BindingIdentifier(is.binding.name),
                 Maybe.empty()
@@ -522,11 +891,9 @@ class ModuleGenerator {
         )
       ));
     }
-    for (ImportSpecifier is : symbolImports) {
+    for (ImportSpecifier is : lateImports) {
       String symbolName = is.name.orJust(is.binding.name);
-      SymbolTable.Symbol symbol = SymbolTable.INSTANCE.getSymbol(symbolName);
-      boolean isCallable = symbol.getDescriptor() == null ||
-        symbol.getDescriptor().type == WasmObjectType.FUNCTION;
+      boolean isCallable = isCallable(symbolTable.getSymbol(symbolName));
 
       // <NAME> = __lateBind(() => (<NAME> = <IMPORTED_NAME>))
       statementsOut.add(new ExpressionStatement(
@@ -536,15 +903,43 @@ class ModuleGenerator {
             new BindingIdentifier(is.binding.name),
             new ComputedMemberExpression(
               new LiteralStringExpression(symbolName),
-              new IdentifierExpression(ModuleGenerator.SYMBOLS_VAR)
+              new IdentifierExpression(symbolsVar)
             ),
-            isCallable
+            isCallable,
+            lateBinderVar
           )
         )
       ));
     }
   }
 
+  /** Describes what appendImports generates, for a fragment's description */
+  public void describeImports(
+    JsModuleFile module,
+    StringBuilder sb,
+    List<ImportSpecifier> symbolImports,
+    List<Import> requirementsImports
+  ) {
+    for (Import i : requirementsImports) {
+      sb.append("requirement ")
+        .append(requirementsTable.get(i.moduleSpecifier).variableName)
+        .append('\n');
+    }
+    for (ImportSpecifier is : symbolImports) {
+      SymbolTable.Symbol symbol =
+        symbolTable.getSymbol(is.name.orJust(is.binding.name));
+      sb.append("import ").append(symbol.getSymbolName()).append(' ')
+        .append(isCallable(symbol)).append(' ')
+        .append(moduleOrder.isLateBound(module, symbol.getSymbolName()))
+        .append('\n');
+    }
+  }
+
+  private static boolean isCallable(SymbolTable.Symbol symbol) {
+    return symbol.getObjectType() == null ||
+      symbol.getObjectType() == WasmObjectType.FUNCTION;
+  }
+
   public void appendExports(
     List<Statement> statementsOut,
     List<ExportSpecifier> exports,
@@ -0,0 +1,223 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.util.*;
+
+/**
+ * Decides the order the modules of a link run in, and how each import is
+ * bound.  A module runs after every module it imports from, so that it can
+ * read the symbols it needs directly; only modules which import from each
+ * other in a cycle have to bind each other's symbols late, through a proxy.
+ *
+ * The Wasm module counts as one more module, which "runs" when it's
+ * instantiated, and defines its exports.  The memories created for it exist
+ * before any module runs, so they're always bound directly.  The modules it
+ * imports from run before it, and the modules which import from it run after
+ * it (in the callback once it's instantiated), unless they're in a cycle
+ * with it.  Modules which need neither run first, as they always have.
+ */
+class ModuleOrder {
+
+  private final List<JsModuleFile> modules = new ArrayList<>();
+  private final int wasmNode;
+  private final List<List<Integer>> dependencies = new ArrayList<>();
+  private final Map<JsModuleFile, Integer> nodes = new IdentityHashMap<>();
+  private final SymbolTable symbolTable;
+  // The strongly connected component of each node
+  private final int[] components;
+  private final List<JsModuleFile> beforeInstantiation = new ArrayList<>();
+  private final List<JsModuleFile> afterInstantiation = new ArrayList<>();
+  private boolean hasLateBindings = false;
+
+  /**
+   * @param modules The modules, in the order given for the link
+   */
+  public ModuleOrder(
+    List<? extends JsModuleFile> modules,
+    WasmFile wasmFile,
+    SymbolTable symbolTable
+  ) {
+    this.symbolTable = symbolTable;
+    for (JsModuleFile module : modules) {
+      nodes.put(module, this.modules.size());
+      this.modules.add(module);
+    }
+    wasmNode = this.modules.size();
+    for (JsModuleFile module : modules)
+      dependencies.add(findDependencies(module.getImportedSymbols()));
+    dependencies.add(findDependencies(wasmFile.getImportedSymbols()));
+
+    components = new ComponentFinder().find();
+    for (int node = 0; node < modules.size(); ++node) {
+      for (int dependency : dependencies.get(node)) {
+        if (components[dependency] == components[node])
+          hasLateBindings = true;
+      }
+    }
+    order();
+  }
+
+  /** Returns the modules to run before the Wasm module is instantiated */
+  public List<JsModuleFile> getBeforeInstantiation() {
+    return beforeInstantiation;
+  }
+
+  /** Returns the modules to run once the Wasm module is instantiated */
+  public List<JsModuleFile> getAfterInstantiation() {
+    return afterInstantiation;
+  }
+
+  /** Whether any import needs to be bound late */
+  public boolean hasLateBindings() {
+    return hasLateBindings;
+  }
+
+  /**
+   * Whether the symbol has to be bound late in the given module, because it
+   * may not be defined yet when the module runs
+   */
+  public boolean isLateBound(JsModuleFile module, String symbolName) {
+    int node = nodes.get(module);
+    int definingNode = findDefiningNode(symbolName);
+    return definingNode >= 0 && components[definingNode] == components[node];
+  }
+
+  private List<Integer> findDependencies(List<String> symbolNames) {
+    List<Integer> nodes = new ArrayList<>();
+    for (String symbolName : symbolNames) {
+      int node = findDefiningNode(symbolName);
+      if (node >= 0)
+        nodes.add(node);
+    }
+    return nodes;
+  }
+
+  /** Returns the node defining the symbol, or -1 if it's always defined */
+  private int findDefiningNode(String symbolName) {
+    SymbolTable.Definition definition =
+      symbolTable.getSymbol(symbolName).getDefinition();
+    if (definition instanceof SymbolTable.JsDefinition) {
+      Integer node = nodes.get(((SymbolTable.JsDefinition)definition).symbolsFile);
+      assert(node != null);
+      return node;
+    }
+    if (definition instanceof SymbolTable.MemoryDefinition)
+      return -1;
+    return wasmNode;
+  }
+
+  /**
+   * Splits the modules either side of the instantiation, each part in an
+   * order where every module comes after its dependencies, but otherwise as
+   * close to the link's order as possible.
+   */
+  private void order() {
+    boolean[] neededByWasm = findReachable(wasmNode, dependencies);
+    List<List<Integer>> dependents = new ArrayList<>();
+    for (int node = 0; node <= wasmNode; ++node)
+      dependents.add(new ArrayList<>());
+    for (int node = 0; node <= wasmNode; ++node) {
+      for (int dependency : dependencies.get(node))
+        dependents.get(dependency).add(node);
+    }
+    boolean[] needsWasm = findReachable(wasmNode, dependents);
+
+    // Kahn's algorithm, over the components, taking the component with the
+    // earliest module first
+    int numComponents = 0;
+    for (int component : components)
+      numComponents = Math.max(numComponents, component + 1);
+    List<List<Integer>> members = new ArrayList<>();
+    for (int component = 0; component < numComponents; ++component)
+      members.add(new ArrayList<>());
+    for (int node = 0; node <= wasmNode; ++node)
+      members.get(components[node]).add(node);
+    int[] numDependencies = new int[numComponents];
+    for (int node = 0; node <= wasmNode; ++node) {
+      for (int dependency : dependencies.get(node)) {
+        if (components[dependency] != components[node])
+          ++numDependencies[components[node]];
+      }
+    }
+    PriorityQueue<Integer> ready =
+      new PriorityQueue<>(Comparator.comparingInt(c -> members.get(c).get(0)));
+    for (int component = 0; component < numComponents; ++component) {
+      if (numDependencies[component] == 0)
+        ready.add(component);
+    }
+    while (!ready.isEmpty()) {
+      int component = ready.remove();
+      for (int node : members.get(component)) {
+        if (node != wasmNode) {
+          if (needsWasm[node] && !neededByWasm[node])
+            afterInstantiation.add(modules.get(node));
+          else
+            beforeInstantiation.add(modules.get(node));
+        }
+        for (int dependent : dependents.get(node)) {
+          if (components[dependent] != component &&
+            --numDependencies[components[dependent]] == 0)
+            ready.add(components[dependent]);
+        }
+      }
+    }
+  }
+
+  private static boolean[] findReachable(int start, List<List<Integer>> edges) {
+    boolean[] reachable = new boolean[edges.size()];
+    Deque<Integer> worklist = new ArrayDeque<>(edges.get(start));
+    while (!worklist.isEmpty()) {
+      int node = worklist.remove();
+      if (reachable[node])
+        continue;
+      reachable[node] = true;
+      worklist.addAll(edges.get(node));
+    }
+    return reachable;
+  }
+
+
+  /** Tarjan's algorithm for the strongly connected components */
+  private class ComponentFinder {
+
+    private final int[] indices = new int[wasmNode + 1];
+    private final int[] lowLinks = new int[wasmNode + 1];
+    private final boolean[] onStack = new boolean[wasmNode + 1];
+    private final Deque<Integer> stack = new ArrayDeque<>();
+    private final int[] result = new int[wasmNode + 1];
+    private int nextIndex = 1;
+    private int nextComponent = 0;
+
+    public int[] find() {
+      for (int node = 0; node <= wasmNode; ++node) {
+        if (indices[node] == 0)
+          visit(node);
+      }
+      return result;
+    }
+
+    private void visit(int node) {
+      indices[node] = lowLinks[node] = nextIndex++;
+      stack.push(node);
+      onStack[node] = true;
+      for (int dependency : dependencies.get(node)) {
+        if (indices[dependency] == 0) {
+          visit(dependency);
+          lowLinks[node] = Math.min(lowLinks[node], lowLinks[dependency]);
+        } else if (onStack[dependency]) {
+          lowLinks[node] = Math.min(lowLinks[node], indices[dependency]);
+        }
+      }
+      if (lowLinks[node] == indices[node]) {
+        int member;
+        do {
+          member = stack.pop();
+          onStack[member] = false;
+          result[member] = nextComponent;
+        } while (member != node);
+        ++nextComponent;
+      }
+    }
+
+  }
+
+}
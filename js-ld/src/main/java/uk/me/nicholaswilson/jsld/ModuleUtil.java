@@ -9,6 +9,8 @@ import com.shapesecurity.functional.data.Maybe;
 import com.shapesecurity.shift.ast.*;
 import com.shapesecurity.shift.parser.JsError;
 import com.shapesecurity.shift.parser.Parser;
+import com.shapesecurity.shift.serialization.Deserializer;
+import com.shapesecurity.shift.serialization.Serializer;
 import com.shapesecurity.shift.validator.ValidationError;
 import com.shapesecurity.shift.validator.Validator;
 
@@ -194,6 +196,43 @@ class ModuleUtil {
     }
   }
 
+  /**
+   * Serializes the output of extractImportsExports, as a Module which
+   * extractImportsExports turns back into the same lists.
+   */
+  public static String serializeExtractedModule(
+    ImmutableList<Directive> directives,
+    List<Statement> module,
+    List<ImportSpecifier> symbolImports,
+    List<Import> requirementsImports,
+    List<ExportSpecifier> exports
+  ) {
+    List<ImportDeclarationExportDeclarationStatement> items =
+      new ArrayList<>(requirementsImports);
+    if (!symbolImports.isEmpty()) {
+      items.add(new Import(
+        Maybe.empty(),
+        ImmutableList.from(symbolImports),
+        SYMBOLS_MODULE
+      ));
+    }
+    if (!exports.isEmpty())
+      items.add(new ExportFrom(ImmutableList.from(exports), Maybe.empty()));
+    items.addAll(module);
+    return Serializer.serialize(
+      new Module(directives, ImmutableList.from(items))
+    );
+  }
+
+  public static Module deserializeModule(String serialized) {
+    try {
+      return (Module)new Deserializer().deserialize(serialized);
+    } catch (Exception e) {
+      // Malformed JSON, or names that aren't Shift AST nodes
+      throw new LdException("Unable to deserialize module: " + e, e);
+    }
+  }
+
   public static void appendFragment(List<Statement> script, String fragment) {
     try {
       ImmutableList<Statement> statements =
@@ -242,10 +281,11 @@ class ModuleUtil {
   public static Expression generateLateBinding(
     BindingIdentifier rebindVar,
     Expression bindingExpression,
-    boolean isCallable
+    boolean isCallable,
+    String lateBinderVar
   ) {
     return new CallExpression(
-      new IdentifierExpression(ModuleGenerator.LATE_BINDER_VAR),
+      new IdentifierExpression(lateBinderVar),
       ImmutableList.of(
         new ArrowExpression(
           new FormalParameters(ImmutableList.empty(), Maybe.empty()),
@@ -12,13 +12,15 @@ class RequirementsTable {
 
   private final Map<String, Requirement> requirements = new LinkedHashMap<>();
   private final Pattern ALLOWED_LETTERS = Pattern.compile("[0-9a-zA-Z_$]");
-
-  public static final RequirementsTable INSTANCE = new RequirementsTable();
+  private final Map<String, String> previousNames;
 
   public Requirement add(String specifier) {
     return requirements.computeIfAbsent(
       specifier,
-      s -> new Requirement(s, budgeSpecifier(s))
+      s -> new Requirement(
+        s,
+        previousNames.containsKey(s) ? previousNames.get(s) : budgeSpecifier(s)
+      )
     );
   }
 
@@ -37,6 +39,14 @@ class RequirementsTable {
       .collect(Collectors.toList());
   }
 
+  /** Returns the variable name given to each requirement, by specifier */
+  public Map<String, String> getVariableNames() {
+    Map<String, String> names = new LinkedHashMap<>();
+    for (Requirement r : requirements.values())
+      names.put(r.specifier, r.variableName);
+    return names;
+  }
+
   private String budgeSpecifier(String specifier) {
     StringBuilder sb = new StringBuilder();
     sb.append("__");
@@ -60,7 +70,17 @@ class RequirementsTable {
   }
 
 
-  private RequirementsTable() {
+  /** Creates an empty table; each link has its own */
+  RequirementsTable() {
+    this(Collections.emptyMap());
+  }
+
+  /**
+   * Creates an empty table, which reuses the variable names given to
+   * requirements by a previous link
+   */
+  RequirementsTable(Map<String, String> previousNames) {
+    this.previousNames = previousNames;
   }
 
 }
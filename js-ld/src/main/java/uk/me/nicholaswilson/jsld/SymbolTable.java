@@ -5,17 +5,26 @@ import uk.me.nicholaswilson.jsld.wasm.WasmObjectDescriptor;
 import uk.me.nicholaswilson.jsld.wasm.WasmObjectType;
 
 import java.util.*;
-import java.util.stream.Collectors;
-
+import java.util.function.Supplier;
+
+/**
+ * The symbols of one link.  Each name is given an id, in the order the names
+ * are first seen, and the table keeps indexes (by id) of the symbols which
+ * are still undefined, so that those don't need a scan over every symbol to
+ * find.
+ */
 class SymbolTable {
 
-  private final Map<String, Symbol> symbols = new LinkedHashMap<>();
-
-  public static final SymbolTable INSTANCE = new SymbolTable();
+  private final Map<String, Symbol> symbolsByName = new HashMap<>();
+  private final List<Symbol> symbols = new ArrayList<>();
+  private int usedCount = 0;
+  private final BitSet undefined = new BitSet();
+  private final Map<WasmObjectType, BitSet> undefinedByType =
+    new EnumMap<>(WasmObjectType.class);
 
 
   public Symbol addDefined(String symbolName, Definition definition) {
-    Symbol symbol = symbols.computeIfAbsent(symbolName, Symbol::new);
+    Symbol symbol = addUndefined(symbolName);
 
     if (symbol.isDefined()) {
       throw new LdException(
@@ -29,62 +38,88 @@ class SymbolTable {
   }
 
   public Symbol addUndefined(String symbolName) {
-    return symbols.computeIfAbsent(symbolName, Symbol::new);
+    Symbol symbol = symbolsByName.get(symbolName);
+    if (symbol == null) {
+      symbol = new Symbol(this, symbols.size(), symbolName);
+      symbolsByName.put(symbolName, symbol);
+      symbols.add(symbol);
+      undefined.set(symbol.id);
+    }
+    return symbol;
   }
 
-  public Set<String> symbolSet() {
-    return Collections.unmodifiableSet(symbols.keySet());
+  /** Returns every symbol, in the order they were added */
+  public List<Symbol> getSymbols() {
+    return Collections.unmodifiableList(symbols);
   }
 
   public Symbol getSymbol(String symbolName) {
-    Symbol symbol = symbols.get(symbolName);
+    Symbol symbol = symbolsByName.get(symbolName);
     assert(symbol != null);
     return symbol;
   }
 
   public boolean hasSymbol(String symbolName) {
-    return symbols.containsKey(symbolName);
+    return symbolsByName.containsKey(symbolName);
+  }
+
+  public int size() {
+    return symbols.size();
+  }
+
+  public int getUsedCount() {
+    return usedCount;
   }
 
   public List<MemoryDefinition> provideUndefinedMemories() {
     List<MemoryDefinition> memoryDefinitions = new ArrayList<>();
-    symbols.values().stream()
-      .filter(Symbol::isUndefined)
-      .forEach(sym -> {
-        WasmObjectDescriptor descriptor = sym.objectDescriptor;
-        if (descriptor == null || descriptor.type != WasmObjectType.MEMORY)
-          return;
-        MemoryDefinition definition = new MemoryDefinition(
-          sym.getSymbolName(),
-          ((WasmObjectDescriptor.Memory)descriptor).signature
-        );
-        sym.setDefinition(definition);
-        memoryDefinitions.add(definition);
-      });
+    BitSet memories = undefinedByType.get(WasmObjectType.MEMORY);
+    if (memories == null)
+      return memoryDefinitions;
+    // Defining each symbol clears its bit, which is behind the iteration
+    for (int id = memories.nextSetBit(0); id >= 0;
+      id = memories.nextSetBit(id + 1)) {
+      Symbol sym = symbols.get(id);
+      MemoryDefinition definition = new MemoryDefinition(
+        sym.getSymbolName(),
+        ((WasmObjectDescriptor.Memory)sym.getDescriptor()).signature
+      );
+      sym.setDefinition(definition);
+      memoryDefinitions.add(definition);
+    }
     return memoryDefinitions;
   }
 
   public void reportUndefined() {
-    List<Symbol> undefined = symbols.values().stream()
-      .filter(Symbol::isUndefined)
-      .collect(Collectors.toList());
-
     if (!undefined.isEmpty()) {
       StringBuilder sb = new StringBuilder();
-      for (Symbol s : undefined) {
-        sb.append("\n  ").append(s.getSymbolName());
+      for (int id = undefined.nextSetBit(0); id >= 0;
+        id = undefined.nextSetBit(id + 1)) {
+        sb.append("\n  ").append(symbols.get(id).getSymbolName());
       }
       throw new LdException("Undefined symbols:" + sb);
     }
   }
 
+  private void updateUndefined(Symbol symbol) {
+    undefined.set(symbol.id, symbol.isUndefined());
+    if (symbol.objectType != null) {
+      undefinedByType
+        .computeIfAbsent(symbol.objectType, type -> new BitSet())
+        .set(symbol.id, symbol.isUndefined());
+    }
+  }
+
 
   static class Symbol {
 
+    private final SymbolTable table;
+    private final int id;
     private final String symbolName;
     private boolean used = false;
     private Definition definition = null;
-    private WasmObjectDescriptor objectDescriptor = null;
+    private WasmObjectType objectType = null;
+    private Supplier<WasmObjectDescriptor> objectDescriptor = null;
 
     public String getSymbolName() {
       return symbolName;
@@ -95,11 +130,14 @@ class SymbolTable {
     }
 
     public boolean isUnused() {
-      return !used;
+      return !isUsed();
     }
 
     public void markUsed() {
-      used = true;
+      if (!used) {
+        used = true;
+        ++table.usedCount;
+      }
     }
 
     public Definition getDefinition() {
@@ -108,6 +146,7 @@ class SymbolTable {
 
     public void setDefinition(Definition definition) {
       this.definition = definition;
+      table.updateUndefined(this);
     }
 
     public boolean isDefined() {
@@ -118,16 +157,32 @@ class SymbolTable {
       return definition == null;
     }
 
+    /** What the symbol is in Wasm, or null if Wasm doesn't know it */
+    public WasmObjectType getObjectType() {
+      return objectType;
+    }
+
     public WasmObjectDescriptor getDescriptor() {
-      return objectDescriptor;
+      return objectDescriptor == null ? null : objectDescriptor.get();
     }
 
-    public void setDescriptor(WasmObjectDescriptor descriptor) {
+    /**
+     * Sets what the symbol is in Wasm; the full descriptor is only fetched
+     * if it's needed
+     */
+    public void setDescriptor(
+      WasmObjectType type,
+      Supplier<WasmObjectDescriptor> descriptor
+    ) {
       assert(objectDescriptor == null && descriptor != null);
+      objectType = type;
       objectDescriptor = descriptor;
+      table.updateUndefined(this);
     }
 
-    protected Symbol(String symbolName) {
+    private Symbol(SymbolTable table, int id, String symbolName) {
+      this.table = table;
+      this.id = id;
       this.symbolName = symbolName;
     }
   }
@@ -181,7 +236,8 @@ class SymbolTable {
   }
 
 
-  private SymbolTable() {
+  /** Creates an empty table; each link has its own */
+  SymbolTable() {
   }
 
 }
@@ -1,5 +1,6 @@
 package uk.me.nicholaswilson.jsld;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -11,9 +12,10 @@ import com.shapesecurity.shift.ast.*;
 import com.shapesecurity.shift.parser.JsError;
 import com.shapesecurity.shift.parser.Parser;
 
-class SymbolsFile {
+class SymbolsFile implements JsModuleFile {
 
   private final Path path;
+  private final String hash;
   private final Module module;
   private final List<ImportSpecifier> symbolImports = new ArrayList<>();
   private final List<Import> requirementsImports = new ArrayList<>();
@@ -24,50 +26,133 @@ class SymbolsFile {
     return path;
   }
 
+  public List<String> getImportedSymbols() {
+    return symbolImports.stream()
+      .map(is -> is.name.orJust(is.binding.name))
+      .collect(Collectors.toList());
+  }
+
+  public List<String> getExportedSymbols() {
+    return exports.stream()
+      .map(es -> es.exportedName)
+      .collect(Collectors.toList());
+  }
+
   public SymbolsFile(Path path) {
+    this(path, FileUtil.pathToBytes(path));
+  }
+
+  private SymbolsFile(Path path, byte[] contents) {
+    this(
+      path,
+      new String(contents, StandardCharsets.UTF_8),
+      FileUtil.hashBytes(contents)
+    );
+  }
+
+  public SymbolsFile(Path path, String source, String hash) {
+    this(path, hash, parse(path, source), true);
+  }
+
+  private SymbolsFile(Path path, String hash, Module module, boolean validate) {
     this.path = path;
+    this.hash = hash;
+    this.module = module;
 
+    if (validate)
+      ModuleUtil.validateModule(module, path.toString());
+    ModuleUtil.extractImportsExports(
+      module,
+      path.toString(),
+      code,
+      symbolImports,
+      requirementsImports,
+      exports
+    );
+  }
+
+  private static Module parse(Path path, String source) {
     try {
-      module = Parser.parseModule(FileUtil.pathToString(path));
+      return Parser.parseModule(source);
     } catch (JsError e) {
       throw new LdException(
         "Error parsing symbols file " + path + ": " + e,
         e
       );
     }
+  }
 
-    ModuleUtil.validateModule(module, path.toString());
-    ModuleUtil.extractImportsExports(
-      module,
-      path.toString(),
+  /** Saves the file's extracted contents, for the DiskCache */
+  public String toCacheEntry() {
+    return ModuleUtil.serializeExtractedModule(
+      module.directives,
       code,
       symbolImports,
       requirementsImports,
       exports
     );
+  }
 
+  /**
+   * Restores a file saved by toCacheEntry, which needs no validation.  The
+   * hash is the one the entry was saved under.
+   */
+  public static SymbolsFile fromCacheEntry(
+    Path path,
+    String entry,
+    String hash
+  ) {
+    return new SymbolsFile(
+      path,
+      hash,
+      ModuleUtil.deserializeModule(entry),
+      false
+    );
+  }
+
+  /**
+   * Adds the file's imports and exports to the tables for a link.  The parsed
+   * file itself is left untouched, so it can be shared between links.
+   */
+  public void register(
+    SymbolTable symbolTable,
+    RequirementsTable requirementsTable
+  ) {
     for (ImportSpecifier is : symbolImports) {
-      SymbolTable.Symbol symbol = SymbolTable.INSTANCE.addUndefined(
+      SymbolTable.Symbol symbol = symbolTable.addUndefined(
         is.name.orJust(is.binding.name)
       );
       symbol.markUsed();
     }
     for (Import i : requirementsImports) {
-      RequirementsTable.INSTANCE.add(i.moduleSpecifier);
+      requirementsTable.add(i.moduleSpecifier);
     }
     for (ExportSpecifier es : exports) {
-      SymbolTable.INSTANCE.addDefined(
+      symbolTable.addDefined(
         es.exportedName,
         new SymbolTable.JsDefinition(this)
       );
     }
   }
 
+  /** Describes everything appendModule's output depends on */
+  public String describeFragment(ModuleGenerator generator) {
+    SymbolTable symbolTable = generator.getSymbolTable();
+    StringBuilder sb = new StringBuilder();
+    sb.append("symbols ").append(hash).append('\n');
+    for (ExportSpecifier es : exports) {
+      if (symbolTable.getSymbol(es.exportedName).isUsed())
+        sb.append("export ").append(es.exportedName).append('\n');
+    }
+    generator.describeImports(this, sb, symbolImports, requirementsImports);
+    return sb.toString();
+  }
+
   public void appendModule(
     ModuleGenerator generator,
     List<Statement> statements
   ) {
-    SymbolTable symbolTable = SymbolTable.INSTANCE;
+    SymbolTable symbolTable = generator.getSymbolTable();
     List<ExportSpecifier> usedExports = exports.stream()
       .filter(es -> symbolTable.getSymbol(es.exportedName).isUsed())
       .collect(Collectors.toList());
@@ -76,15 +161,21 @@ class SymbolsFile {
 
     List<Statement> moduleStatements = new ArrayList<>();
     generator.appendImports(
+      this,
       moduleStatements,
       symbolImports,
       requirementsImports
     );
-    moduleStatements.addAll(code);
+    moduleStatements.addAll(DeadCodeEliminator.removeUnreachable(
+      code,
+      usedExports.stream()
+        .map(es -> es.name.orJust(es.exportedName))
+        .collect(Collectors.toSet())
+    ));
     generator.appendExports(
       moduleStatements,
       usedExports,
-      new IdentifierExpression(ModuleGenerator.SYMBOLS_VAR)
+      new IdentifierExpression(generator.getSymbolsVar())
     );
 
     // (function() { <MODULE_BODY>; <EXTRA_EXPORTS>; })()
@@ -0,0 +1,564 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Finds the symbols a symbols file imports and exports, for GENERATE_IMPORTS,
+ * without parsing it.  The file is only tokenized, far enough to track the
+ * nesting of brackets and to skip over strings, comments and regexes, and the
+ * import and export declarations at the top level are read from the tokens.
+ *
+ * The scan only understands the declarations which a link accepts, and
+ * gives up on anything else (such as 'export default', or a token it can't
+ * be sure of), in which case the file must be parsed properly instead.  It
+ * doesn't check the rest of the file, so syntax errors are only reported by
+ * the link itself.
+ */
+class SymbolsScanner {
+
+  private static final String SYMBOLS_MODULE = "__symbols";
+
+  // The keywords which can be followed by an expression, and so by a regex
+  private static final Set<String> EXPRESSION_KEYWORDS = new HashSet<>(
+    Arrays.asList(
+      "await", "case", "delete", "do", "else", "in", "instanceof", "new", "of",
+      "return", "throw", "typeof", "void", "yield"
+    )
+  );
+
+  /** The symbols found in a file */
+  static class Symbols {
+
+    public final Path path;
+    public final List<String> importedSymbols;
+    public final List<String> exportedSymbols;
+
+    Symbols(Path path, List<String> importedSymbols, List<String> exportedSymbols) {
+      this.path = path;
+      this.importedSymbols = Collections.unmodifiableList(importedSymbols);
+      this.exportedSymbols = Collections.unmodifiableList(exportedSymbols);
+    }
+
+    /** Adds the symbols to the table, as SymbolsFile.register would */
+    public void register(SymbolTable symbolTable) {
+      for (String name : importedSymbols)
+        symbolTable.addUndefined(name).markUsed();
+      SymbolTable.Definition definition = path::toString;
+      for (String name : exportedSymbols)
+        symbolTable.addDefined(name, definition);
+    }
+
+  }
+
+  /** Thrown to give up on the scan, when the file needs a proper parse */
+  private static class GiveUp extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    GiveUp() {
+      super(null, null, false, false);
+    }
+  }
+
+  private enum TokenType {
+    IDENTIFIER,
+    NUMBER,
+    STRING,
+    TEMPLATE,
+    REGEX,
+    PUNCTUATOR,
+    EOF
+  }
+
+  private final String source;
+  private int pos = 0;
+  // The depth of (), [] and {} before the current token
+  private int depth = 0;
+  // The depths at which each template literal being read resumes
+  private final Deque<Integer> templateDepths = new ArrayDeque<>();
+
+  // The current token, and the one before it
+  private TokenType type;
+  private String text;
+  private boolean newlineBefore;
+  private int tokenDepth;
+  private TokenType prevType;
+  private String prevText;
+  private boolean pushedBack;
+
+  private final List<String> importedSymbols = new ArrayList<>();
+  private final List<String> exportedSymbols = new ArrayList<>();
+
+  /**
+   * Scans a symbols file, returning its symbols, or null if the scan can't
+   * tell what they are
+   */
+  public static Symbols scan(Path path, String source) {
+    SymbolsScanner scanner = new SymbolsScanner(source);
+    try {
+      scanner.scanModule();
+    } catch (GiveUp e) {
+      return null;
+    }
+    return new Symbols(path, scanner.importedSymbols, scanner.exportedSymbols);
+  }
+
+  private SymbolsScanner(String source) {
+    this.source = source;
+  }
+
+  private void scanModule() throws GiveUp {
+    // A hashbang isn't something the parser knows about
+    if (source.startsWith("#!"))
+      throw new GiveUp();
+    while (next() != TokenType.EOF) {
+      if (tokenDepth != 0 || type != TokenType.IDENTIFIER ||
+        (prevType == TokenType.PUNCTUATOR &&
+          (prevText.equals(".") || prevText.equals("?."))))
+        continue;
+      if (text.equals("import"))
+        scanImport();
+      else if (text.equals("export"))
+        scanExport();
+    }
+    if (depth != 0 || !templateDepths.isEmpty())
+      throw new GiveUp();
+  }
+
+  private void scanImport() throws GiveUp {
+    next();
+    if (type == TokenType.STRING) {
+      // Only a requirement, or 'import <all>' from the symbols (an error)
+      if (getModuleName().equals(SYMBOLS_MODULE))
+        throw new GiveUp();
+      return;
+    }
+
+    // Read the import clause, up to the 'from'
+    List<String> names = new ArrayList<>();
+    boolean onlyNamed = isPunctuator("{");
+    while (!isIdentifier("from")) {
+      if (isPunctuator("{"))
+        scanImportSpecifiers(names);
+      else if (type != TokenType.IDENTIFIER && !isPunctuator(","))
+        throw new GiveUp(); // Such as import(), or 'import *' (an error)
+      next();
+    }
+    expect(TokenType.STRING);
+    if (getModuleName().equals(SYMBOLS_MODULE)) {
+      // A default import of the symbols is an error
+      if (!onlyNamed || names.isEmpty())
+        throw new GiveUp();
+      importedSymbols.addAll(names);
+    }
+  }
+
+  /** Returns the current string token as a module name */
+  private String getModuleName() throws GiveUp {
+    if (text.indexOf('\\') >= 0)
+      throw new GiveUp(); // Escapes would need decoding
+    return text;
+  }
+
+  /** Reads "{ a, b as c }", adding the imported names */
+  private void scanImportSpecifiers(List<String> names) throws GiveUp {
+    while (true) {
+      next();
+      if (isPunctuator("}"))
+        return;
+      if (type != TokenType.IDENTIFIER)
+        throw new GiveUp();
+      names.add(text);
+      next();
+      if (isIdentifier("as")) {
+        expect(TokenType.IDENTIFIER);
+        next();
+      }
+      if (isPunctuator("}"))
+        return;
+      if (!isPunctuator(","))
+        throw new GiveUp();
+    }
+  }
+
+  private void scanExport() throws GiveUp {
+    next();
+    if (isPunctuator("{")) {
+      scanExportSpecifiers();
+    } else if (isIdentifier("function")) {
+      scanFunctionName();
+    } else if (isIdentifier("class")) {
+      expect(TokenType.IDENTIFIER);
+      if (text.equals("extends"))
+        throw new GiveUp();
+      exportedSymbols.add(text);
+    } else if (isIdentifier("const") || isIdentifier("let") ||
+      isIdentifier("var")) {
+      scanVariableDeclarators();
+    } else {
+      // 'export default', 'export *', and so on, are errors
+      throw new GiveUp();
+    }
+  }
+
+  /** Reads "{ a, b as c }", adding the exported names */
+  private void scanExportSpecifiers() throws GiveUp {
+    List<String> names = new ArrayList<>();
+    while (true) {
+      next();
+      if (isPunctuator("}"))
+        break;
+      if (type != TokenType.IDENTIFIER)
+        throw new GiveUp();
+      String name = text;
+      next();
+      if (isIdentifier("as")) {
+        expect(TokenType.IDENTIFIER);
+        name = text;
+        next();
+      }
+      names.add(name);
+      if (isPunctuator("}"))
+        break;
+      if (!isPunctuator(","))
+        throw new GiveUp();
+    }
+    next();
+    if (isIdentifier("from"))
+      throw new GiveUp(); // 'export from' is an error
+    pushBack();
+    exportedSymbols.addAll(names);
+  }
+
+  private void scanFunctionName() throws GiveUp {
+    next();
+    if (isPunctuator("*"))
+      next();
+    if (type != TokenType.IDENTIFIER)
+      throw new GiveUp();
+    exportedSymbols.add(text);
+  }
+
+  /**
+   * Reads the declarators following 'const', 'let' or 'var', adding their
+   * names.  Each initialiser is skipped up to the ',' or ';' after it, or
+   * up to where a semicolon would be inserted.
+   */
+  private void scanVariableDeclarators() throws GiveUp {
+    while (true) {
+      // Destructuring is an error, which the parse reports
+      expect(TokenType.IDENTIFIER);
+      exportedSymbols.add(text);
+      next();
+      if (isPunctuator("=")) {
+        do {
+          if (next() == TokenType.EOF && tokenDepth != 0)
+            throw new GiveUp();
+        } while (tokenDepth != 0 || !endsInitializer());
+      }
+      if (tokenDepth == 0 && isPunctuator(","))
+        continue;
+      if (!isPunctuator(";")) {
+        if (type != TokenType.EOF && !newlineBefore)
+          throw new GiveUp();
+        pushBack();
+      }
+      return;
+    }
+  }
+
+  /** Whether the current token, at the top level, isn't in an initialiser */
+  private boolean endsInitializer() throws GiveUp {
+    if (type == TokenType.EOF || isPunctuator(",") || isPunctuator(";"))
+      return true;
+    if (!newlineBefore || !prevEndsValue())
+      return false;
+    // After a line break, a token which can't continue the expression ends
+    // the statement
+    switch (type) {
+      case IDENTIFIER:
+        return !text.equals("in") && !text.equals("instanceof");
+      case NUMBER:
+      case STRING:
+      case REGEX:
+        return true;
+      case PUNCTUATOR:
+        if (text.equals("++") || text.equals("--"))
+          throw new GiveUp(); // Could be either
+        return text.equals("{") || text.equals("!") || text.equals("~");
+      default:
+        return false;
+    }
+  }
+
+  private boolean prevEndsValue() {
+    switch (prevType) {
+      case IDENTIFIER:
+        return !EXPRESSION_KEYWORDS.contains(prevText);
+      case NUMBER:
+      case STRING:
+      case TEMPLATE:
+      case REGEX:
+        return true;
+      case PUNCTUATOR:
+        return prevText.equals(")") || prevText.equals("]") ||
+          prevText.equals("}") || prevText.equals("++") ||
+          prevText.equals("--");
+      default:
+        return false;
+    }
+  }
+
+  private boolean isIdentifier(String name) {
+    return type == TokenType.IDENTIFIER && text.equals(name);
+  }
+
+  private boolean isPunctuator(String punctuator) {
+    return type == TokenType.PUNCTUATOR && text.equals(punctuator);
+  }
+
+  private void expect(TokenType expected) throws GiveUp {
+    if (next() != expected)
+      throw new GiveUp();
+  }
+
+  /** Makes the next call to next() return the current token again */
+  private void pushBack() {
+    assert(!pushedBack);
+    pushedBack = true;
+  }
+
+
+  // The tokenizer
+
+  private TokenType next() throws GiveUp {
+    if (pushedBack) {
+      pushedBack = false;
+      return type;
+    }
+    if (type != null) {
+      prevType = type;
+      prevText = text;
+    }
+    newlineBefore = skipWhitespaceAndComments();
+    tokenDepth = depth;
+    if (pos >= source.length()) {
+      type = TokenType.EOF;
+      text = "";
+      return type;
+    }
+
+    int start = pos;
+    char c = source.charAt(pos);
+    if (Character.isJavaIdentifierStart(c)) {
+      while (pos < source.length() &&
+        Character.isJavaIdentifierPart(source.charAt(pos)))
+        ++pos;
+      if (pos < source.length() && source.charAt(pos) == '\\')
+        throw new GiveUp(); // Escapes in identifiers
+      return token(TokenType.IDENTIFIER, source.substring(start, pos));
+    }
+    if (isDigit(c) ||
+      (c == '.' && pos + 1 < source.length() && isDigit(source.charAt(pos + 1)))) {
+      readNumber();
+      return token(TokenType.NUMBER, source.substring(start, pos));
+    }
+    if (c == '"' || c == '\'')
+      return token(TokenType.STRING, readString(c));
+    if (c == '`') {
+      ++pos;
+      return readTemplate();
+    }
+    if (c == '/' && startsRegex()) {
+      readRegex();
+      return token(TokenType.REGEX, "");
+    }
+
+    ++pos;
+    switch (c) {
+      case '(':
+      case '[':
+      case '{':
+        ++depth;
+        break;
+      case ')':
+      case ']':
+        --depth;
+        break;
+      case '}':
+        --depth;
+        if (!templateDepths.isEmpty() && templateDepths.peek() == depth) {
+          // The end of a substitution in a template literal
+          templateDepths.pop();
+          return readTemplate();
+        }
+        break;
+      case '+':
+      case '-':
+        if (pos < source.length() && source.charAt(pos) == c)
+          ++pos;
+        break;
+      case '?':
+        if (source.startsWith(".", pos) &&
+          !(pos + 1 < source.length() && isDigit(source.charAt(pos + 1))))
+          ++pos;
+        break;
+      case '.':
+        if (source.startsWith("..", pos))
+          pos += 2;
+        break;
+      case '\\':
+        throw new GiveUp(); // Escapes in identifiers
+    }
+    if (depth < 0)
+      throw new GiveUp();
+    return token(TokenType.PUNCTUATOR, source.substring(start, pos));
+  }
+
+  private TokenType token(TokenType type, String text) {
+    this.type = type;
+    this.text = text;
+    return type;
+  }
+
+  /** Skips to the next token, returning whether there was a line break */
+  private boolean skipWhitespaceAndComments() throws GiveUp {
+    boolean newline = false;
+    while (pos < source.length()) {
+      char c = source.charAt(pos);
+      if (isLineTerminator(c)) {
+        newline = true;
+        ++pos;
+      } else if (Character.isWhitespace(c) || Character.isSpaceChar(c) ||
+        c == '\uFEFF') {
+        ++pos;
+      } else if (source.startsWith("//", pos)) {
+        while (pos < source.length() && !isLineTerminator(source.charAt(pos)))
+          ++pos;
+      } else if (source.startsWith("/*", pos)) {
+        int end = source.indexOf("*/", pos + 2);
+        if (end < 0)
+          throw new GiveUp();
+        for (int i = pos + 2; i < end; ++i)
+          newline |= isLineTerminator(source.charAt(i));
+        pos = end + 2;
+      } else {
+        break;
+      }
+    }
+    return newline;
+  }
+
+  private void readNumber() {
+    while (pos < source.length()) {
+      char c = source.charAt(pos);
+      if ((c == '+' || c == '-') &&
+        (source.charAt(pos - 1) == 'e' || source.charAt(pos - 1) == 'E') &&
+        !source.startsWith("0x", pos - 2) &&
+        !source.startsWith("0X", pos - 2)) {
+        ++pos; // An exponent's sign
+      } else if (Character.isLetterOrDigit(c) || c == '.' || c == '_') {
+        ++pos;
+      } else {
+        break;
+      }
+    }
+  }
+
+  /** Reads a string literal, returning its value if it has no escapes */
+  private String readString(char quote) throws GiveUp {
+    int start = ++pos;
+    boolean escaped = false;
+    while (true) {
+      if (pos >= source.length())
+        throw new GiveUp();
+      char c = source.charAt(pos++);
+      if (c == quote)
+        break;
+      if (c == '\\') {
+        escaped = true;
+        ++pos;
+      } else if (c == '\n' || c == '\r') {
+        throw new GiveUp();
+      }
+    }
+    // Only module names matter, which don't need escapes
+    return escaped ? "\\" : source.substring(start, pos - 1);
+  }
+
+  /**
+   * Reads the rest of a template literal, or of its text up to the next
+   * substitution, which is then read like the contents of brackets
+   */
+  private TokenType readTemplate() throws GiveUp {
+    while (true) {
+      if (pos >= source.length())
+        throw new GiveUp();
+      char c = source.charAt(pos++);
+      if (c == '`')
+        return token(TokenType.TEMPLATE, "");
+      if (c == '\\') {
+        ++pos;
+      } else if (c == '$' && pos < source.length() &&
+        source.charAt(pos) == '{') {
+        ++pos;
+        templateDepths.push(depth++);
+        return token(TokenType.PUNCTUATOR, "${");
+      }
+    }
+  }
+
+  /**
+   * Whether a '/' starts a regex rather than being a division, which depends
+   * on whether the token before it ends a value
+   */
+  private boolean startsRegex() throws GiveUp {
+    if (type == null)
+      return true;
+    // After "}", a regex follows a block, but division follows an object
+    if (type == TokenType.PUNCTUATOR && text.equals("}"))
+      throw new GiveUp();
+    switch (type) {
+      case IDENTIFIER:
+        return EXPRESSION_KEYWORDS.contains(text);
+      case PUNCTUATOR:
+        return !text.equals(")") && !text.equals("]") &&
+          !text.equals("++") && !text.equals("--");
+      default:
+        return false;
+    }
+  }
+
+  private void readRegex() throws GiveUp {
+    boolean inClass = false;
+    ++pos;
+    while (true) {
+      if (pos >= source.length())
+        throw new GiveUp();
+      char c = source.charAt(pos++);
+      if (isLineTerminator(c))
+        throw new GiveUp();
+      if (c == '\\') {
+        ++pos;
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == ']') {
+        inClass = false;
+      } else if (c == '/' && !inClass) {
+        break;
+      }
+    }
+    while (pos < source.length() &&
+      Character.isJavaIdentifierPart(source.charAt(pos)))
+      ++pos;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+  }
+
+}
@@ -0,0 +1,249 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static uk.me.nicholaswilson.jsld.WasmUtil.*;
+
+/**
+ * Decodes the instructions of a function body, finding the functions and
+ * types it refers to, and optionally writing out a copy of the body with
+ * those indices replaced.  Only the immediates are decoded; the body isn't
+ * validated beyond that.
+ *
+ * The MVP instructions are understood, along with the sign-extension,
+ * saturating conversion, bulk memory, reference types, tail call and atomic
+ * instructions.  Anything else (such as SIMD) is reported as unsupported.
+ */
+class WasmCodeWalker {
+
+  /** Gives the new index for each function or type referred to */
+  interface IndexMapper {
+    int mapFunction(int index);
+    int mapType(int index);
+  }
+
+  private static final int OPCODE_UNREACHABLE = 0x00;
+  private static final int OPCODE_NOP = 0x01;
+  private static final int OPCODE_BLOCK = 0x02;
+  private static final int OPCODE_LOOP = 0x03;
+  private static final int OPCODE_IF = 0x04;
+  private static final int OPCODE_ELSE = 0x05;
+  private static final int OPCODE_END = 0x0B;
+  private static final int OPCODE_BR = 0x0C;
+  private static final int OPCODE_BR_IF = 0x0D;
+  private static final int OPCODE_BR_TABLE = 0x0E;
+  private static final int OPCODE_RETURN = 0x0F;
+  private static final int OPCODE_CALL = 0x10;
+  private static final int OPCODE_CALL_INDIRECT = 0x11;
+  private static final int OPCODE_RETURN_CALL = 0x12;
+  private static final int OPCODE_RETURN_CALL_INDIRECT = 0x13;
+  private static final int OPCODE_DROP = 0x1A;
+  private static final int OPCODE_SELECT = 0x1B;
+  private static final int OPCODE_SELECT_TYPED = 0x1C;
+  private static final int OPCODE_LOCAL_GET = 0x20;
+  private static final int OPCODE_TABLE_SET = 0x26;
+  private static final int OPCODE_LOAD_FIRST = 0x28;
+  private static final int OPCODE_STORE_LAST = 0x3E;
+  private static final int OPCODE_MEMORY_SIZE = 0x3F;
+  private static final int OPCODE_MEMORY_GROW = 0x40;
+  private static final int OPCODE_CONST_I32 = 0x41;
+  private static final int OPCODE_CONST_I64 = 0x42;
+  private static final int OPCODE_CONST_F32 = 0x43;
+  private static final int OPCODE_CONST_F64 = 0x44;
+  private static final int OPCODE_NUMERIC_FIRST = 0x45;
+  private static final int OPCODE_NUMERIC_LAST = 0xC4;
+  private static final int OPCODE_REF_NULL = 0xD0;
+  private static final int OPCODE_REF_IS_NULL = 0xD1;
+  private static final int OPCODE_REF_FUNC = 0xD2;
+  private static final int OPCODE_PREFIX_MISC = 0xFC;
+  private static final int OPCODE_PREFIX_ATOMIC = 0xFE;
+  private static final int OPCODE_ATOMIC_FENCE = 0x03;
+  private static final int BLOCKTYPE_EMPTY = 0x40;
+
+  private final ByteBuffer body;
+  private final IndexMapper mapper;
+  private final ByteArrayOutputStream out;
+  // The start of the bytes not yet copied to the output
+  private int copiedTo;
+
+  private WasmCodeWalker(
+    ByteBuffer body,
+    IndexMapper mapper,
+    ByteArrayOutputStream out
+  ) {
+    this.body = body;
+    this.mapper = mapper;
+    this.out = out;
+    this.copiedTo = body.position();
+  }
+
+  /**
+   * Walks a function body (its locals and expression, without the size), up
+   * to the end of the buffer.
+   * @param out Where to write the rewritten body, or null to only visit the
+   *            indices
+   */
+  public static void walk(
+    ByteBuffer body,
+    IndexMapper mapper,
+    ByteArrayOutputStream out
+  ) {
+    new WasmCodeWalker(body, mapper, out).walk();
+  }
+
+  private void walk() {
+    int numLocalGroups = getUleb32(body);
+    while ((numLocalGroups--) > 0) {
+      getUleb32(body);
+      body.get();
+    }
+
+    while (body.hasRemaining()) {
+      int op = Byte.toUnsignedInt(body.get());
+      if (op == OPCODE_BLOCK || op == OPCODE_LOOP || op == OPCODE_IF) {
+        walkBlockType();
+      } else if (op == OPCODE_BR || op == OPCODE_BR_IF) {
+        getUleb32(body);
+      } else if (op == OPCODE_BR_TABLE) {
+        int numLabels = getUleb32(body);
+        while ((numLabels--) >= 0)
+          getUleb32(body);
+      } else if (op == OPCODE_CALL || op == OPCODE_RETURN_CALL ||
+        op == OPCODE_REF_FUNC) {
+        walkFunctionIndex();
+      } else if (op == OPCODE_CALL_INDIRECT ||
+        op == OPCODE_RETURN_CALL_INDIRECT) {
+        walkTypeIndex();
+        getUleb32(body); // table
+      } else if (op == OPCODE_SELECT_TYPED) {
+        int numTypes = getUleb32(body);
+        while ((numTypes--) > 0)
+          body.get();
+      } else if (op >= OPCODE_LOCAL_GET && op <= OPCODE_TABLE_SET) {
+        // Local, global and table accesses
+        getUleb32(body);
+      } else if (op >= OPCODE_LOAD_FIRST && op <= OPCODE_STORE_LAST) {
+        skipMemArg();
+      } else if (op == OPCODE_MEMORY_SIZE || op == OPCODE_MEMORY_GROW) {
+        getUleb32(body);
+      } else if (op == OPCODE_CONST_I32) {
+        getSleb32(body);
+      } else if (op == OPCODE_CONST_I64) {
+        getSleb64(body);
+      } else if (op == OPCODE_CONST_F32) {
+        body.getFloat();
+      } else if (op == OPCODE_CONST_F64) {
+        body.getDouble();
+      } else if (op == OPCODE_REF_NULL) {
+        body.get();
+      } else if (op == OPCODE_PREFIX_MISC) {
+        walkMisc(getUleb32(body));
+      } else if (op == OPCODE_PREFIX_ATOMIC) {
+        if (getUleb32(body) == OPCODE_ATOMIC_FENCE)
+          body.get();
+        else
+          skipMemArg();
+      } else if (!hasNoImmediates(op)) {
+        throw new LdException(
+          "Unsupported Wasm file: unknown opcode 0x" + Integer.toHexString(op)
+        );
+      }
+    }
+
+    if (out != null)
+      putBytes(out, body, copiedTo, body.position());
+  }
+
+  private static boolean hasNoImmediates(int op) {
+    return op == OPCODE_UNREACHABLE || op == OPCODE_NOP ||
+      op == OPCODE_ELSE || op == OPCODE_END || op == OPCODE_RETURN ||
+      op == OPCODE_DROP || op == OPCODE_SELECT ||
+      (op >= OPCODE_NUMERIC_FIRST && op <= OPCODE_NUMERIC_LAST) ||
+      op == OPCODE_REF_IS_NULL;
+  }
+
+  private void walkBlockType() {
+    int b = Byte.toUnsignedInt(body.get(body.position()));
+    // An empty type or a value type is a single negative byte, otherwise it's
+    // a type index
+    if (b == BLOCKTYPE_EMPTY || (b & 0xC0) == 0x40) {
+      body.get();
+      return;
+    }
+    int start = body.position();
+    long index = getSleb64(body);
+    if (index < 0 || index > Integer.MAX_VALUE)
+      throw new LdException("Invalid Wasm file: bad block type");
+    int newIndex = mapper.mapType((int)index);
+    if (out != null) {
+      putBytes(out, body, copiedTo, start);
+      putSleb32(out, newIndex);
+      copiedTo = body.position();
+    }
+  }
+
+  private void walkFunctionIndex() {
+    int start = body.position();
+    int newIndex = mapper.mapFunction(getUleb32(body));
+    replaceIndex(start, newIndex);
+  }
+
+  private void walkTypeIndex() {
+    int start = body.position();
+    int newIndex = mapper.mapType(getUleb32(body));
+    replaceIndex(start, newIndex);
+  }
+
+  private void replaceIndex(int start, int newIndex) {
+    if (out != null) {
+      putBytes(out, body, copiedTo, start);
+      putUleb32(out, newIndex);
+      copiedTo = body.position();
+    }
+  }
+
+  private void walkMisc(int op) {
+    switch (op) {
+    case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+      // Saturating conversions
+      break;
+    case 8: // memory.init
+      getUleb32(body);
+      getUleb32(body);
+      break;
+    case 9: // data.drop
+      getUleb32(body);
+      break;
+    case 10: // memory.copy
+      getUleb32(body);
+      getUleb32(body);
+      break;
+    case 11: // memory.fill
+      getUleb32(body);
+      break;
+    case 12: // table.init
+      getUleb32(body);
+      getUleb32(body);
+      break;
+    case 13: // elem.drop
+      getUleb32(body);
+      break;
+    case 14: // table.copy
+      getUleb32(body);
+      getUleb32(body);
+      break;
+    case 15: case 16: case 17: // table.grow, table.size, table.fill
+      getUleb32(body);
+      break;
+    default:
+      throw new LdException("Unsupported Wasm file: unknown opcode 0xFC " + op);
+    }
+  }
+
+  private void skipMemArg() {
+    getUleb32(body); // alignment
+    getUleb32(body); // offset
+  }
+
+}
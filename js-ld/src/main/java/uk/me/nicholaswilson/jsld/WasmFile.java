@@ -1,9 +1,10 @@
 package uk.me.nicholaswilson.jsld;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,25 +19,43 @@ class WasmFile {
   public static final String SYMBOLS_MODULE = "env";
   public static final String CALL_CTORS_SYMBOL = "__wasm_call_ctors";
 
-  private static class ImportEntry {
-    public final String module;
+  /**
+   * An import or an export.  Most are only looked at by name, so the
+   * descriptor of what they are is only created when it's asked for.
+   */
+  private class Entry implements Supplier<WasmObjectDescriptor> {
     public final String name;
-    public final WasmObjectDescriptor objectDescriptor;
+    public final WasmObjectType type;
+    // Into the index space for the type, which starts with the imports
+    public final int index;
+    private WasmObjectDescriptor objectDescriptor;
 
-    private ImportEntry(String module, String name, WasmObjectDescriptor objectDescriptor) {
-      this.module = module;
+    private Entry(String name, WasmObjectType type, int index) {
       this.name = name;
-      this.objectDescriptor = objectDescriptor;
+      this.type = type;
+      this.index = index;
+    }
+
+    @Override
+    public WasmObjectDescriptor get() {
+      if (objectDescriptor == null)
+        objectDescriptor = createDescriptor(type, index);
+      return objectDescriptor;
     }
   }
 
-  private static class ExportEntry {
-    public final String name;
-    public final WasmObjectDescriptor objectDescriptor;
+  private class ImportEntry extends Entry {
+    public final String module;
 
-    private ExportEntry(String name, WasmObjectDescriptor objectDescriptor) {
-      this.name = name;
-      this.objectDescriptor = objectDescriptor;
+    private ImportEntry(String module, String name, WasmObjectType type, int index) {
+      super(name, type, index);
+      this.module = module;
+    }
+  }
+
+  private class ExportEntry extends Entry {
+    private ExportEntry(String name, WasmObjectType type, int index) {
+      super(name, type, index);
     }
   }
 
@@ -64,25 +83,51 @@ class WasmFile {
   }
 
   public WasmFile(Path path) {
+    this(path, false);
+  }
+
+  /**
+   * Reads the module at the given path.
+   * @param scanWholeModule Whether to check the sections following the last
+   *                        one the linker needs, such as CODE, DATA and any
+   *                        trailing custom sections, rather than stopping
+   */
+  public WasmFile(Path path, boolean scanWholeModule) {
+    // Only the sections read below are ever paged in; the rest (typically the
+    // bulk of the file, in CODE and DATA) are skipped over in the mapping.
+    this(
+      path,
+      new WasmInput(FileUtil.pathToMappedByteBuffer(path)),
+      scanWholeModule
+    );
+  }
+
+  private WasmFile(Path path, WasmInput input, boolean scanWholeModule) {
     this.path = path;
 
-    ByteBuffer buffer = FileUtil.pathToByteBuffer(path);
     try {
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-      if (buffer.getInt() != 0x6D_73_61_00)
+      ByteBuffer header = input.getBytes(8);
+      if (header.getInt() != 0x6D_73_61_00)
         throw new LdException("Invalid Wasm file: bad magic");
-      if (buffer.getInt() != 0x00_00_00_01)
+      if (header.getInt() != 0x00_00_00_01)
         throw new LdException("Invalid Wasm file: bad version");
       int lastSectionId = -1;
-      while (buffer.hasRemaining()) {
-        byte sectionId = buffer.get();
-        int sectionLen = getUleb32(buffer);
+      int sectionId;
+      while ((sectionId = input.nextByte()) >= 0) {
         if (sectionId != CUSTOM_SECTION_ID) {
           if (sectionId < lastSectionId)
             throw new LdException("Invalid Wasm file: out of order section");
           lastSectionId = sectionId;
+          // Every section we read comes before ELEM, CODE and DATA
+          if (sectionId > START_SECTION_ID && !scanWholeModule)
+            break;
         }
-        ByteBuffer sectionBuffer = (ByteBuffer)buffer.slice().limit(sectionLen);
+        int sectionLen = input.getUleb32();
+        if (sectionId == CUSTOM_SECTION_ID || sectionId > START_SECTION_ID) {
+          input.skipBytes(sectionLen);
+          continue;
+        }
+        ByteBuffer sectionBuffer = input.getBytes(sectionLen);
         if (sectionId == TYPE_SECTION_ID) {
           readTypes(sectionBuffer);
         } else if (sectionId == IMPORT_SECTION_ID) {
@@ -99,12 +144,9 @@ class WasmFile {
           readExports(sectionBuffer);
         } else if (sectionId == START_SECTION_ID) {
           readStart(sectionBuffer);
-        } else {
-          sectionBuffer.position(sectionBuffer.limit());
         }
         if (sectionBuffer.hasRemaining())
           throw new LdException("Invalid Wasm file: trailing section data");
-        buffer.position(buffer.position() + sectionLen);
       }
     } catch (LdException e) {
       throw e;
@@ -115,65 +157,114 @@ class WasmFile {
 
     validateNames();
 
+    for (ExportEntry ee : exports) {
+      if (!hasStartFunction() && ee.name.equals(CALL_CTORS_SYMBOL))
+        needsExternalCallCtors = true;
+    }
+  }
+
+  /** Adds the module's imports and exports to the tables for a link */
+  public void register(
+    SymbolTable symbolTable,
+    RequirementsTable requirementsTable
+  ) {
     for (ImportEntry ie : imports) {
       if (ie.module.equals(SYMBOLS_MODULE)) {
-        SymbolTable.Symbol symbol = SymbolTable.INSTANCE.addUndefined(ie.name);
+        SymbolTable.Symbol symbol = symbolTable.addUndefined(ie.name);
         symbol.markUsed();
-        symbol.setDescriptor(ie.objectDescriptor);
+        symbol.setDescriptor(ie.type, ie);
       } else {
-        RequirementsTable.INSTANCE.add(ie.module);
+        requirementsTable.add(ie.module);
       }
     }
     for (ExportEntry ee : exports) {
-      SymbolTable.Symbol symbol = SymbolTable.INSTANCE.addDefined(
+      SymbolTable.Symbol symbol = symbolTable.addDefined(
           ee.name,
           new SymbolTable.WasmDefinition(this)
       );
-      symbol.setDescriptor(ee.objectDescriptor);
-      if (!hasStartFunction() &&
-          symbol.getSymbolName().equals(CALL_CTORS_SYMBOL)) {
-        needsExternalCallCtors = true;
-      }
+      symbol.setDescriptor(ee.type, ee);
     }
   }
 
+  /**
+   * Adds the statements binding each used export into the symbols object.
+   * Guarded function exports are given to the wrappers instead, and the rest
+   * are bound directly.
+   * @param isGuarded Whether the named export should be wrapped
+   */
   public void appendExports(
     List<Statement> statements,
     String exportsVar,
-    String wrapperFunctionVar
+    Predicate<String> isGuarded,
+    ExportWrappers wrappers,
+    String symbolsVar,
+    SymbolTable symbolTable
   ) {
-    SymbolTable symbolTable = SymbolTable.INSTANCE;
     for (ExportEntry ee : exports) {
       if (symbolTable.getSymbol(ee.name).isUnused())
         continue;
-      // __symbols['<EXPORTED_NAME>'] = wrapExport('<EXPORTED_NAME>')
+      if (ee.type == WasmObjectType.FUNCTION && isGuarded.test(ee.name)) {
+        wrappers.add(
+          ee.name,
+          getFunctionSignature(ee.index).parameterTypes.size()
+        );
+        continue;
+      }
+      // __symbols['<EXPORTED_NAME>'] = es['<EXPORTED_NAME>']
       statements.add(new ExpressionStatement(
         new AssignmentExpression(
           new ComputedMemberExpression(
             new LiteralStringExpression(ee.name),
-            new IdentifierExpression(ModuleGenerator.SYMBOLS_VAR)
+            new IdentifierExpression(symbolsVar)
           ),
-          ee.objectDescriptor.type == WasmObjectType.FUNCTION
-            ? new CallExpression(
-              new IdentifierExpression(wrapperFunctionVar),
-              ImmutableList.of(new LiteralStringExpression(ee.name))
-            )
-            : new ComputedMemberExpression(
-              new LiteralStringExpression(ee.name),
-              new IdentifierExpression(exportsVar)
-            )
+          new ComputedMemberExpression(
+            new LiteralStringExpression(ee.name),
+            new IdentifierExpression(exportsVar)
+          )
         )
       ));
     }
   }
 
-  public ImmutableList<ObjectProperty> getImports() {
+  /** Returns the names of the symbols the module imports */
+  public List<String> getImportedSymbols() {
+    return imports.stream()
+      .filter(ie -> ie.module.equals(SYMBOLS_MODULE))
+      .map(ie -> ie.name)
+      .collect(Collectors.toList());
+  }
+
+  /** Whether the module exports a function with the given name */
+  public boolean hasFunctionExport(String name) {
+    return exports.stream().anyMatch(
+      ee -> ee.name.equals(name) &&
+        ee.type == WasmObjectType.FUNCTION
+    );
+  }
+
+  /**
+   * Returns the names of the exports the generated code needs: those used by
+   * the link, and the constructors if the loader has to call them.
+   */
+  public Set<String> getNeededExports(SymbolTable symbolTable) {
+    Set<String> names = new HashSet<>();
+    for (ExportEntry ee : exports) {
+      if (!symbolTable.getSymbol(ee.name).isUnused() ||
+        (needsExternalCallCtors && ee.name.equals(CALL_CTORS_SYMBOL)))
+        names.add(ee.name);
+    }
+    return names;
+  }
+
+  public ImmutableList<ObjectProperty> getImports(
+    RequirementsTable requirementsTable
+  ) {
     Set<String> requirements = new LinkedHashSet<>();
     imports.stream().filter(i -> !i.module.equals(SYMBOLS_MODULE))
       .forEach(i -> requirements.add(i.module));
     return ImmutableList.from(
       requirements.stream().map(i -> {
-        RequirementsTable.Requirement r = RequirementsTable.INSTANCE.get(i);
+        RequirementsTable.Requirement r = requirementsTable.get(i);
         return (ObjectProperty) new DataProperty(
           new IdentifierExpression(r.variableName),
           new StaticPropertyName(r.specifier)
@@ -184,16 +275,18 @@ class WasmFile {
 
 
   private void readTypes(ByteBuffer buffer) {
+    FuncTypeTable funcTypes = new FuncTypeTable();
     int numTypes = getUleb32(buffer);
     while ((numTypes--) > 0) {
-      signatures.add(getFuncType(buffer));
+      signatures.add(getFuncType(buffer, funcTypes));
     }
   }
 
   private void readImports(ByteBuffer buffer) {
     int numImports = getUleb32(buffer);
+    String module = null;
     while ((numImports--) > 0) {
-      String module = getString(buffer);
+      module = getString(buffer, module);
       String name = getString(buffer);
       WasmObjectType type = WasmObjectType.of(buffer.get());
       switch (type) {
@@ -201,27 +294,23 @@ class WasmFile {
           int typeIndex = getTypeIdx(buffer);
           if (typeIndex >= signatures.size())
             throw new LdException("Invalid Wasm file: bad fn import type");
-          WasmFunctionSignature signature = signatures.get(typeIndex);
-          imports.add(new ImportEntry(module, name, new WasmObjectDescriptor.Function(signature)));
-          functionImports.add(signature);
+          imports.add(new ImportEntry(module, name, type, functionImports.size()));
+          functionImports.add(signatures.get(typeIndex));
           break;
         }
         case TABLE: {
-          WasmTableSignature signature = getTableType(buffer);
-          imports.add(new ImportEntry(module, name, new WasmObjectDescriptor.Table(signature)));
-          tableImports.add(signature);
+          imports.add(new ImportEntry(module, name, type, tableImports.size()));
+          tableImports.add(getTableType(buffer));
           break;
         }
         case MEMORY: {
-          WasmMemorySignature signature = getMemoryType(buffer);
-          imports.add(new ImportEntry(module, name, new WasmObjectDescriptor.Memory(signature)));
-          memoryImports.add(signature);
+          imports.add(new ImportEntry(module, name, type, memoryImports.size()));
+          memoryImports.add(getMemoryType(buffer));
           break;
         }
         case GLOBAL: {
-          WasmGlobalSignature signature = getGlobalType(buffer);
-          imports.add(new ImportEntry(module, name, new WasmObjectDescriptor.Global(signature)));
-          globalImports.add(signature);
+          imports.add(new ImportEntry(module, name, type, globalImports.size()));
+          globalImports.add(getGlobalType(buffer));
           break;
         }
       }
@@ -269,28 +358,14 @@ class WasmFile {
       String name = getString(buffer);
       WasmObjectType type = WasmObjectType.of(buffer.get());
       int index = getUleb32(buffer);
+      // Only the index is checked for now; the descriptor is made on demand
       switch (type) {
-        case FUNCTION:
-          exports.add(
-            new ExportEntry(name, new WasmObjectDescriptor.Function(getFunctionSignature(index)))
-          );
-          break;
-        case TABLE:
-          exports.add(
-            new ExportEntry(name, new WasmObjectDescriptor.Table(getTableSignature(index)))
-          );
-          break;
-        case MEMORY:
-          exports.add(
-            new ExportEntry(name, new WasmObjectDescriptor.Memory(getMemorySignature(index)))
-          );
-          break;
-        case GLOBAL:
-          exports.add(
-            new ExportEntry(name, new WasmObjectDescriptor.Global(getGlobalSignature(index)))
-          );
-          break;
+        case FUNCTION: getFunctionSignature(index); break;
+        case TABLE: getTableSignature(index); break;
+        case MEMORY: getMemorySignature(index); break;
+        case GLOBAL: getGlobalSignature(index); break;
       }
+      exports.add(new ExportEntry(name, type, index));
     }
   }
 
@@ -301,6 +376,20 @@ class WasmFile {
     startFunction = index;
   }
 
+  private WasmObjectDescriptor createDescriptor(WasmObjectType type, int index) {
+    switch (type) {
+      case FUNCTION:
+        return new WasmObjectDescriptor.Function(getFunctionSignature(index));
+      case TABLE:
+        return new WasmObjectDescriptor.Table(getTableSignature(index));
+      case MEMORY:
+        return new WasmObjectDescriptor.Memory(getMemorySignature(index));
+      case GLOBAL:
+        return new WasmObjectDescriptor.Global(getGlobalSignature(index));
+    }
+    throw new AssertionError(type);
+  }
+
   private WasmFunctionSignature getFunctionSignature(int index) {
     int numFunctionImports = functionImports.size();
     if (index < numFunctionImports)
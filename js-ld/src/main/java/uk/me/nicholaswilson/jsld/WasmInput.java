@@ -0,0 +1,56 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The bytes of a Wasm module, typically a memory-mapped file, consumed front
+ * to back a section at a time.  Sections which the linker doesn't need are
+ * skipped over without being read, so their pages are never touched.
+ */
+class WasmInput {
+
+  private final ByteBuffer buffer;
+
+  public WasmInput(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /** Returns the next byte, or -1 at the end of the module */
+  public int nextByte() {
+    return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+  }
+
+  /** Returns a little-endian buffer of exactly the next len bytes */
+  public ByteBuffer getBytes(int len) {
+    checkRemaining(len);
+    ByteBuffer bytes = (ByteBuffer)buffer.slice().limit(len);
+    buffer.position(buffer.position() + len);
+    return bytes.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public void skipBytes(int len) {
+    checkRemaining(len);
+    buffer.position(buffer.position() + len);
+  }
+
+  public int getUleb32() {
+    // At most five bytes, which WasmUtil checks once they're gathered up
+    ByteBuffer bytes = ByteBuffer.allocate(5);
+    int b;
+    do {
+      b = nextByte();
+      if (b < 0)
+        throw new LdException("Invalid Wasm file: truncated");
+      bytes.put((byte)b);
+    } while ((b & 0x80) != 0 && bytes.hasRemaining());
+    bytes.flip();
+    return WasmUtil.getUleb32(bytes);
+  }
+
+  private void checkRemaining(int len) {
+    if (len > buffer.remaining())
+      throw new LdException("Invalid Wasm file: truncated");
+  }
+
+}
@@ -0,0 +1,518 @@
+package uk.me.nicholaswilson.jsld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import uk.me.nicholaswilson.jsld.wasm.WasmObjectType;
+
+import static uk.me.nicholaswilson.jsld.WasmUtil.*;
+
+/**
+ * Writes out a copy of a Wasm module, for shipping alongside the JS module,
+ * leaving out the exports which the JS module never uses, and optionally the
+ * custom sections (names, producers, debug info).
+ *
+ * It can also remove the functions which can't be reached from the exports
+ * that are kept, the start function, the constructors, or the table.  The
+ * remaining functions are renumbered to close the gaps, and the TYPE section
+ * is cut down to one entry for each distinct type still in use, so every
+ * section referring to a function or type index is rewritten to match.  The
+ * function names in the "name" section are kept, but other custom sections
+ * which might refer to the old indices or code offsets (such as relocations
+ * and debug info) are dropped.
+ *
+ * Everything else is copied across untouched.
+ */
+class WasmRewriter {
+
+  private static final int TAG_SECTION_ID = 13;
+  private static final int ELEM_ACTIVE = 0;
+  private static final int ELEM_PASSIVE = 1;
+  private static final int ELEM_ACTIVE_TABLE = 2;
+  private static final int ELEM_DECLARATIVE = 3;
+  private static final int NAME_SUBSECTION_MODULE = 0;
+  private static final int NAME_SUBSECTION_FUNCTIONS = 1;
+  private static final int NAME_SUBSECTION_LOCALS = 2;
+  // Custom sections which don't refer to anything in the module
+  private static final Set<String> INDEPENDENT_CUSTOM_SECTIONS =
+    new HashSet<>(Arrays.asList("producers", "target_features"));
+
+  private static class Section {
+    public final int id;
+    public final ByteBuffer contents;
+
+    private Section(int id, ByteBuffer contents) {
+      this.id = id;
+      this.contents = contents;
+    }
+  }
+
+  private final Path inputPath;
+  private final Set<String> keptExports;
+  private final boolean stripCustomSections;
+  private final boolean removeUnusedFunctions;
+  private final List<Section> sections = new ArrayList<>();
+
+  // Found by findLiveFunctions, when removing unused functions
+  private int numImportedFunctions;
+  private int[] newFunctionIndices; // -1 for a removed function
+  private int[] newTypeIndices; // -1 for an unused type
+  private final List<ByteBuffer> liveTypes = new ArrayList<>();
+
+  /**
+   * @param keptExports The names of the exports to keep
+   * @param stripCustomSections Whether to leave out all custom sections
+   * @param removeUnusedFunctions Whether to leave out the functions which
+   *                              can't be called
+   */
+  public WasmRewriter(
+    Path inputPath,
+    Set<String> keptExports,
+    boolean stripCustomSections,
+    boolean removeUnusedFunctions
+  ) {
+    this.inputPath = inputPath;
+    this.keptExports = keptExports;
+    this.stripCustomSections = stripCustomSections;
+    this.removeUnusedFunctions = removeUnusedFunctions;
+  }
+
+  /** Returns the rewritten module */
+  public byte[] toBytes() {
+    return rewrite(FileUtil.pathToMappedByteBuffer(inputPath));
+  }
+
+  public void write(Path outputPath) {
+    byte[] bytes = toBytes();
+    try {
+      Path tempPath = FileUtil.createTempFileFor(outputPath);
+      try {
+        Files.write(tempPath, bytes);
+        FileUtil.replaceFile(tempPath, outputPath);
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
+    } catch (IOException e) {
+      throw new LdException("Unable to write to " + outputPath + ": " + e, e);
+    }
+  }
+
+  private byte[] rewrite(ByteBuffer input) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(input.remaining());
+    // The module has already been checked by WasmFile, up to the sections
+    // that are copied blindly here.
+    try {
+      // Magic and version
+      for (int i = 0; i < 8; ++i)
+        out.write(input.get());
+
+      while (input.hasRemaining()) {
+        int sectionId = Byte.toUnsignedInt(input.get());
+        int sectionLen = getUleb32(input);
+        ByteBuffer contents = (ByteBuffer)input.slice().limit(sectionLen);
+        input.position(input.position() + sectionLen);
+        sections.add(new Section(sectionId, contents));
+      }
+
+      if (removeUnusedFunctions)
+        findLiveFunctions();
+
+      for (Section section : sections)
+        rewriteSection(out, section);
+    } catch (RuntimeException e) {
+      if (e instanceof LdException)
+        throw e;
+      throw new LdException("Invalid Wasm file: " + e, e);
+    }
+    return out.toByteArray();
+  }
+
+  private void rewriteSection(ByteArrayOutputStream out, Section section) {
+    ByteBuffer contents = section.contents.duplicate();
+    if (section.id == CUSTOM_SECTION_ID) {
+      if (stripCustomSections)
+        return;
+      if (removeUnusedFunctions) {
+        String name = getString(contents.duplicate());
+        if (name.equals("name")) {
+          putSection(out, section.id, rewriteNames(contents));
+          return;
+        }
+        if (!INDEPENDENT_CUSTOM_SECTIONS.contains(name))
+          return;
+      }
+    } else if (section.id == EXPORT_SECTION_ID) {
+      putSection(out, section.id, rewriteExports(contents));
+      return;
+    } else if (removeUnusedFunctions) {
+      ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+      if (section.id == TYPE_SECTION_ID) {
+        putUleb32(rewritten, liveTypes.size());
+        for (ByteBuffer type : liveTypes)
+          putBytes(rewritten, type, type.position(), type.limit());
+      } else if (section.id == IMPORT_SECTION_ID) {
+        walkImports(contents, new ArrayList<>(), rewritten);
+      } else if (section.id == FUNCTION_SECTION_ID) {
+        rewriteFunctions(contents, rewritten);
+      } else if (section.id == START_SECTION_ID) {
+        putUleb32(rewritten, newFunctionIndices[getUleb32(contents)]);
+      } else if (section.id == ELEM_SECTION_ID) {
+        walkElems(contents, new ArrayList<>(), rewritten);
+      } else if (section.id == CODE_SECTION_ID) {
+        rewriteCode(contents, rewritten);
+      } else {
+        rewritten = null;
+      }
+      if (rewritten != null) {
+        putSection(out, section.id, rewritten);
+        return;
+      }
+    }
+    out.write(section.id);
+    putUleb32(out, contents.remaining());
+    putBytes(out, contents, contents.position(), contents.limit());
+  }
+
+  private ByteArrayOutputStream rewriteExports(ByteBuffer section) {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    int numKept = 0;
+    int numExports = getUleb32(section);
+    while ((numExports--) > 0) {
+      String name = getString(section);
+      WasmObjectType type = WasmObjectType.of(section.get());
+      int index = getUleb32(section);
+      if (!keptExports.contains(name))
+        continue;
+      if (removeUnusedFunctions && type == WasmObjectType.FUNCTION)
+        index = newFunctionIndices[index];
+      putString(entries, name);
+      entries.write(type.code);
+      putUleb32(entries, index);
+      ++numKept;
+    }
+
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    putUleb32(contents, numKept);
+    contents.write(entries.toByteArray(), 0, entries.size());
+    return contents;
+  }
+
+
+  /**
+   * Marks every function reachable from the roots, and the types they use,
+   * and numbers the ones which are left.
+   */
+  private void findLiveFunctions() {
+    List<ByteBuffer> types = new ArrayList<>();
+    ByteBuffer typeSection = findSection(TYPE_SECTION_ID);
+    if (typeSection != null) {
+      FuncTypeTable funcTypes = new FuncTypeTable();
+      int numTypes = getUleb32(typeSection);
+      while ((numTypes--) > 0) {
+        int start = typeSection.position();
+        getFuncType(typeSection, funcTypes);
+        ByteBuffer type = typeSection.duplicate();
+        type.position(start).limit(typeSection.position());
+        types.add(type);
+      }
+    }
+
+    List<Integer> functionTypes = new ArrayList<>();
+    ByteBuffer importSection = findSection(IMPORT_SECTION_ID);
+    if (importSection != null)
+      walkImports(importSection, functionTypes, null);
+    numImportedFunctions = functionTypes.size();
+    ByteBuffer functionSection = findSection(FUNCTION_SECTION_ID);
+    if (functionSection != null) {
+      int numFunctions = getUleb32(functionSection);
+      while ((numFunctions--) > 0)
+        functionTypes.add(getTypeIdx(functionSection));
+    }
+    List<ByteBuffer> bodies = readBodies();
+    if (bodies.size() != functionTypes.size() - numImportedFunctions)
+      throw new LdException("Invalid Wasm file: mismatched CODE section");
+    if (findSection(TAG_SECTION_ID) != null) {
+      // Exception tags refer to types too
+      throw new LdException("Unsupported Wasm file: TAG section");
+    }
+
+    Deque<Integer> worklist = new ArrayDeque<>(findRoots());
+    boolean[] liveFunctions = new boolean[functionTypes.size()];
+    boolean[] liveTypeIndices = new boolean[types.size()];
+    WasmCodeWalker.IndexMapper marker = new WasmCodeWalker.IndexMapper() {
+      public int mapFunction(int index) {
+        worklist.add(index);
+        return index;
+      }
+      public int mapType(int index) {
+        liveTypeIndices[index] = true;
+        return index;
+      }
+    };
+    // Imports can't be removed without changing what the JS module provides
+    for (int i = 0; i < numImportedFunctions; ++i)
+      worklist.add(i);
+    while (!worklist.isEmpty()) {
+      int index = worklist.remove();
+      if (liveFunctions[index])
+        continue;
+      liveFunctions[index] = true;
+      liveTypeIndices[functionTypes.get(index)] = true;
+      if (index >= numImportedFunctions) {
+        WasmCodeWalker.walk(
+          bodies.get(index - numImportedFunctions),
+          marker,
+          null
+        );
+      }
+    }
+
+    newFunctionIndices = new int[functionTypes.size()];
+    int numLiveFunctions = 0;
+    for (int i = 0; i < functionTypes.size(); ++i)
+      newFunctionIndices[i] = liveFunctions[i] ? numLiveFunctions++ : -1;
+
+    // Identical types are merged, by comparing their encodings
+    Map<ByteBuffer, Integer> typeIndices = new HashMap<>();
+    newTypeIndices = new int[types.size()];
+    for (int i = 0; i < types.size(); ++i) {
+      if (!liveTypeIndices[i]) {
+        newTypeIndices[i] = -1;
+        continue;
+      }
+      Integer newIndex = typeIndices.get(types.get(i));
+      if (newIndex == null) {
+        newIndex = liveTypes.size();
+        typeIndices.put(types.get(i), newIndex);
+        liveTypes.add(types.get(i));
+      }
+      newTypeIndices[i] = newIndex;
+    }
+  }
+
+  /**
+   * Finds the functions which can be called from outside: the exports that
+   * are kept, the constructors, the start function, and anything placed in a
+   * table (which might be called indirectly).
+   */
+  private List<Integer> findRoots() {
+    List<Integer> roots = new ArrayList<>();
+    ByteBuffer exportSection = findSection(EXPORT_SECTION_ID);
+    if (exportSection != null) {
+      int numExports = getUleb32(exportSection);
+      while ((numExports--) > 0) {
+        String name = getString(exportSection);
+        WasmObjectType type = WasmObjectType.of(exportSection.get());
+        int index = getUleb32(exportSection);
+        if (type == WasmObjectType.FUNCTION && (keptExports.contains(name) ||
+          name.equals(WasmFile.CALL_CTORS_SYMBOL)))
+          roots.add(index);
+      }
+    }
+    ByteBuffer startSection = findSection(START_SECTION_ID);
+    if (startSection != null)
+      roots.add(getUleb32(startSection));
+    ByteBuffer elemSection = findSection(ELEM_SECTION_ID);
+    if (elemSection != null)
+      walkElems(elemSection, roots, new ByteArrayOutputStream());
+    return roots;
+  }
+
+  /** Returns the function bodies in the CODE section, without their sizes */
+  private List<ByteBuffer> readBodies() {
+    List<ByteBuffer> bodies = new ArrayList<>();
+    ByteBuffer codeSection = findSection(CODE_SECTION_ID);
+    if (codeSection != null) {
+      int numBodies = getUleb32(codeSection);
+      while ((numBodies--) > 0) {
+        int size = getUleb32(codeSection);
+        bodies.add((ByteBuffer)codeSection.slice().limit(size));
+        codeSection.position(codeSection.position() + size);
+      }
+    }
+    return bodies;
+  }
+
+  /** Returns the contents of the (first) section with the given id */
+  private ByteBuffer findSection(int id) {
+    for (Section section : sections) {
+      if (section.id == id)
+        return section.contents.duplicate();
+    }
+    return null;
+  }
+
+
+  /**
+   * Reads the IMPORT section, collecting the types of the imported functions,
+   * and writing out the section with the types renumbered if out is given.
+   */
+  private void walkImports(
+    ByteBuffer section,
+    List<Integer> functionTypes,
+    ByteArrayOutputStream out
+  ) {
+    int start = section.position();
+    int numImports = getUleb32(section);
+    int copiedTo = start;
+    while ((numImports--) > 0) {
+      getString(section);
+      getString(section);
+      WasmObjectType type = WasmObjectType.of(section.get());
+      if (type == WasmObjectType.FUNCTION) {
+        int typeStart = section.position();
+        int typeIndex = getTypeIdx(section);
+        functionTypes.add(typeIndex);
+        if (out != null) {
+          putBytes(out, section, copiedTo, typeStart);
+          putUleb32(out, newTypeIndices[typeIndex]);
+          copiedTo = section.position();
+        }
+      } else if (type == WasmObjectType.TABLE) {
+        getTableType(section);
+      } else if (type == WasmObjectType.MEMORY) {
+        getMemoryType(section);
+      } else {
+        getGlobalType(section);
+      }
+    }
+    if (out != null)
+      putBytes(out, section, copiedTo, section.limit());
+  }
+
+  private void rewriteFunctions(ByteBuffer section, ByteArrayOutputStream out) {
+    int numFunctions = getUleb32(section);
+    List<Integer> liveTypeIndices = new ArrayList<>();
+    for (int i = 0; i < numFunctions; ++i) {
+      int typeIndex = getTypeIdx(section);
+      if (newFunctionIndices[numImportedFunctions + i] >= 0)
+        liveTypeIndices.add(newTypeIndices[typeIndex]);
+    }
+    putUleb32(out, liveTypeIndices.size());
+    for (int typeIndex : liveTypeIndices)
+      putUleb32(out, typeIndex);
+  }
+
+  /**
+   * Reads the ELEM section, collecting the functions in each segment, and
+   * writing out the section with the functions renumbered (once they have
+   * been).  Only segments of function indices are supported, not the ones
+   * made of expressions.
+   */
+  private void walkElems(
+    ByteBuffer section,
+    List<Integer> functions,
+    ByteArrayOutputStream out
+  ) {
+    int numSegments = getUleb32(section);
+    putUleb32(out, numSegments);
+    while ((numSegments--) > 0) {
+      int start = section.position();
+      int flags = getUleb32(section);
+      if (flags == ELEM_ACTIVE_TABLE)
+        getUleb32(section);
+      if (flags == ELEM_ACTIVE || flags == ELEM_ACTIVE_TABLE)
+        skipGlobalInit(section);
+      if (flags == ELEM_PASSIVE || flags == ELEM_ACTIVE_TABLE ||
+        flags == ELEM_DECLARATIVE) {
+        if (section.get() != 0x00)
+          throw new LdException("Unsupported Wasm file: bad element kind");
+      } else if (flags != ELEM_ACTIVE) {
+        throw new LdException("Unsupported Wasm file: element expressions");
+      }
+      putBytes(out, section, start, section.position());
+
+      int numFunctions = getUleb32(section);
+      putUleb32(out, numFunctions);
+      while ((numFunctions--) > 0) {
+        int index = getUleb32(section);
+        functions.add(index);
+        putUleb32(out, newFunctionIndices == null
+          ? index
+          : newFunctionIndices[index]);
+      }
+    }
+  }
+
+  private void rewriteCode(ByteBuffer section, ByteArrayOutputStream out) {
+    WasmCodeWalker.IndexMapper mapper = new WasmCodeWalker.IndexMapper() {
+      public int mapFunction(int index) {
+        return newFunctionIndices[index];
+      }
+      public int mapType(int index) {
+        return newTypeIndices[index];
+      }
+    };
+    List<ByteBuffer> bodies = readBodies();
+    int numLiveBodies = 0;
+    for (int i = 0; i < bodies.size(); ++i) {
+      if (newFunctionIndices[numImportedFunctions + i] >= 0)
+        ++numLiveBodies;
+    }
+    putUleb32(out, numLiveBodies);
+    for (int i = 0; i < bodies.size(); ++i) {
+      if (newFunctionIndices[numImportedFunctions + i] < 0)
+        continue;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      WasmCodeWalker.walk(bodies.get(i), mapper, body);
+      putUleb32(out, body.size());
+      out.write(body.toByteArray(), 0, body.size());
+    }
+  }
+
+  /**
+   * Rewrites the "name" section, keeping the module name and the names of
+   * the remaining functions and their locals.  The other subsections name
+   * things such as types and labels, and are dropped rather than renumbered.
+   */
+  private ByteArrayOutputStream rewriteNames(ByteBuffer section) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    putString(out, getString(section));
+    while (section.hasRemaining()) {
+      int subsectionId = Byte.toUnsignedInt(section.get());
+      int size = getUleb32(section);
+      ByteBuffer subsection = (ByteBuffer)section.slice().limit(size);
+      section.position(section.position() + size);
+
+      if (subsectionId == NAME_SUBSECTION_MODULE) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        putBytes(contents, subsection, 0, size);
+        putSection(out, subsectionId, contents);
+      } else if (subsectionId == NAME_SUBSECTION_FUNCTIONS ||
+        subsectionId == NAME_SUBSECTION_LOCALS) {
+        // A map from function index to a name, or to a map of local names
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        int numKept = 0;
+        int numEntries = getUleb32(subsection);
+        while ((numEntries--) > 0) {
+          int newIndex = newFunctionIndices[getUleb32(subsection)];
+          int start = subsection.position();
+          if (subsectionId == NAME_SUBSECTION_FUNCTIONS) {
+            getString(subsection);
+          } else {
+            int numLocals = getUleb32(subsection);
+            while ((numLocals--) > 0) {
+              getUleb32(subsection);
+              getString(subsection);
+            }
+          }
+          if (newIndex < 0)
+            continue;
+          putUleb32(entries, newIndex);
+          putBytes(entries, subsection, start, subsection.position());
+          ++numKept;
+        }
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        putUleb32(contents, numKept);
+        contents.write(entries.toByteArray(), 0, entries.size());
+        putSection(out, subsectionId, contents);
+      }
+    }
+    return out;
+  }
+
+}
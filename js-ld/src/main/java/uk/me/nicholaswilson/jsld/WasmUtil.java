@@ -2,14 +2,14 @@ package uk.me.nicholaswilson.jsld;
 
 import uk.me.nicholaswilson.jsld.wasm.*;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
 
 class WasmUtil {
 
@@ -22,9 +22,20 @@ class WasmUtil {
   public static final byte GLOBAL_SECTION_ID = 6;
   public static final byte EXPORT_SECTION_ID = 7;
   public static final byte START_SECTION_ID = 8;
+  public static final byte ELEM_SECTION_ID = 9;
+  public static final byte CODE_SECTION_ID = 10;
+  public static final byte DATA_SECTION_ID = 11;
 
-  private static final CharsetDecoder UTF_8_DECODER =
-      StandardCharsets.UTF_8.newDecoder();
+  // Decoders are stateful, so each thread needs its own
+  private static final ThreadLocal<CharsetDecoder> UTF_8_DECODER =
+      ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT));
+
+  // Space to copy ASCII strings into before making them Strings
+  private static final int ASCII_CHARS_LENGTH = 1024;
+  private static final ThreadLocal<char[]> ASCII_CHARS =
+      ThreadLocal.withInitial(() -> new char[ASCII_CHARS_LENGTH]);
 
   private static final byte OPCODE_END = 0x0B;
   private static final byte OPCODE_GET_GLOBAL = 0x23;
@@ -34,11 +45,6 @@ class WasmUtil {
   private static final byte OPCODE_CONST_F64 = 0x44;
   private static final byte OPCODE_FUNCTYPE = 0x60;
 
-  static {
-    UTF_8_DECODER.onMalformedInput(CodingErrorAction.REPORT);
-    UTF_8_DECODER.onUnmappableCharacter(CodingErrorAction.REPORT);
-  }
-
   public static int getUleb32(ByteBuffer buffer) {
     long bits = getLeb5(buffer, false);
     if ((bits & ~0xffff_ffffL) != 0) {
@@ -81,78 +87,79 @@ class WasmUtil {
   }
 
   public static long getUleb64(ByteBuffer buffer) {
-    byte[] bits = getLeb10(buffer, false);
-    if (bits[8] != 0) {
-      // The last byte cannot have the top bits set, which would take the value
-      // out of a U64 range.
-      throw new LdException("Invalid Wasm file: bad ULEB64");
-    }
-    if ((Byte.toUnsignedInt(bits[7]) & 0x80) != 0)
-      throw new LdException("Unsupported Wasm file: ULEB64 >= 2^63");
-    return lebValue(bits);
+    return getLeb10(buffer, false);
   }
 
   public static long getSleb64(ByteBuffer buffer) {
-    byte[] bits = getLeb10(buffer, true);
-    int sign = (Byte.toUnsignedInt(bits[8]) << 1) |
-      (Byte.toUnsignedInt(bits[7]) >> 7);
-    if (sign != 0 && sign != 0x1ffL) {
-      // The top bits must be set to the same value, or else the value will be
-      // out of the S64 range.
-      throw new LdException("Invalid Wasm file: bad SLEB64");
-    }
-    return lebValue(bits);
+    return getLeb10(buffer, true);
   }
 
   /** Reads up to ten bytes in LEB format */
-  private static byte[] getLeb10(ByteBuffer buffer, boolean signExtend) {
-    byte[] bits = new byte[9]; // little-endian
-    int shift = 0;
-    for (int i = 0; i < 10; ++i) {
+  private static long getLeb10(ByteBuffer buffer, boolean signed) {
+    long bits = 0;
+    for (int shift = 0; shift < 63; shift += 7) {
       byte b = buffer.get();
-      lebShiftOr(bits, (byte)(b & 0x7f), shift); // bits |= (b & 0x7f) << shift
+      bits |= (b & 0x7fL) << shift;
       if ((b & 0x80) == 0) {
-        if (signExtend && (b & 0x40) != 0)
-          lebExtend(bits, shift + 7);
+        if (signed && (b & 0x40) != 0)
+          bits |= ~0L << (shift + 7);
         return bits;
       }
-      shift += 7;
     }
-    // A value in the range 0..2^64-1 cannot take more than ten bytes
-    throw new LdException("Invalid Wasm file: bad LEB64");
+    // The tenth byte only has room for the top bit; the rest of it is beyond
+    // 64 bits, so must be zero (or copies of the sign bit)
+    byte b = buffer.get();
+    if ((b & 0x80) != 0) {
+      // A value in the range 0..2^64-1 cannot take more than ten bytes
+      throw new LdException("Invalid Wasm file: bad LEB64");
+    }
+    if (signed) {
+      if (b != 0 && b != 0x7f)
+        throw new LdException("Invalid Wasm file: bad SLEB64");
+    } else {
+      if ((b & 0x7e) != 0)
+        throw new LdException("Invalid Wasm file: bad ULEB64");
+      if (b != 0)
+        throw new LdException("Unsupported Wasm file: ULEB64 >= 2^63");
+    }
+    return bits | ((long)b << 63);
   }
 
-  private static long lebValue(byte[] bits) {
-    long value = 0L;
-    for (int i = 0; i < 8; ++i)
-      value |= Byte.toUnsignedLong(bits[i]) << (8 * i);
-    return value;
+  public static String getString(ByteBuffer buffer) {
+    return getString(buffer, null);
   }
 
-  private static void lebShiftOr(byte[] bits, byte b, int shift) {
-    int shiftLowByte = shift / 8, shiftBits = shift % 8;
-    if (shiftBits == 0) {
-      bits[shiftLowByte] |= b;
-    } else {
-      bits[shiftLowByte] |= b << shiftBits;
-      bits[shiftLowByte + 1] |= b >>> (8 - shiftBits);
+  /**
+   * Reads a string, returning the given one instead if it's the same, so
+   * that strings which repeat (like import modules) aren't copied each time
+   */
+  public static String getString(ByteBuffer buffer, String previous) {
+    int len = getUleb32(buffer);
+    int start = buffer.position();
+    int end = start + len;
+    if (end > buffer.limit())
+      throw new BufferUnderflowException();
+    if (previous != null && equalsAscii(previous, buffer, start, len)) {
+      buffer.position(end);
+      return previous;
     }
-  }
 
-  private static void lebExtend(byte[] bits, int shift) {
-    int shiftLowByte = shift / 8, shiftBits = shift % 8;
-    bits[shiftLowByte] |= (byte)0xff << shiftBits;
-    for (shift += 8 - shiftBits; shift < 9 * 8; shift += 8) {
-      bits[shift / 8] = (byte)0xff;
+    // Almost every name is ASCII, which needs no decoding
+    char[] chars = len <= ASCII_CHARS_LENGTH ? ASCII_CHARS.get() : null;
+    if (chars != null) {
+      int i = 0;
+      for (byte b; i < len && (b = buffer.get(start + i)) >= 0; ++i)
+        chars[i] = (char)b;
+      if (i == len) {
+        buffer.position(end);
+        return new String(chars, 0, len);
+      }
     }
-  }
 
-  public static String getString(ByteBuffer buffer) {
-    int len = getUleb32(buffer);
     int oldLimit = buffer.limit();
-    buffer.limit(buffer.position() + len);
+    buffer.limit(end);
     try {
-      CharBuffer decoded = UTF_8_DECODER.decode(buffer);
+      CharBuffer decoded = UTF_8_DECODER.get().decode(buffer);
       assert(!buffer.hasRemaining());
       buffer.limit(oldLimit);
       return decoded.toString();
@@ -161,6 +168,21 @@ class WasmUtil {
     }
   }
 
+  private static boolean equalsAscii(
+    String s,
+    ByteBuffer buffer,
+    int position,
+    int len
+  ) {
+    if (s.length() != len)
+      return false;
+    for (int i = 0; i < len; ++i) {
+      if (s.charAt(i) != buffer.get(position + i))
+        return false;
+    }
+    return true;
+  }
+
   public static int getTypeIdx(ByteBuffer buffer) {
     return getUleb32(buffer);
   }
@@ -202,6 +224,55 @@ class WasmUtil {
     }
   }
 
+  public static void putUleb32(ByteArrayOutputStream out, int value) {
+    do {
+      int b = value & 0x7f;
+      value >>>= 7;
+      out.write(value != 0 ? b | 0x80 : b);
+    } while (value != 0);
+  }
+
+  public static void putSleb32(ByteArrayOutputStream out, int value) {
+    while (true) {
+      int b = value & 0x7f;
+      value >>= 7;
+      // Stop once the rest is all sign bits, and the last byte shows the sign
+      if ((value == 0 && (b & 0x40) == 0) || (value == -1 && (b & 0x40) != 0)) {
+        out.write(b);
+        return;
+      }
+      out.write(b | 0x80);
+    }
+  }
+
+  /** Writes the buffer's bytes from one (absolute) position up to another */
+  public static void putBytes(
+    ByteArrayOutputStream out,
+    ByteBuffer buffer,
+    int from,
+    int to
+  ) {
+    for (int i = from; i < to; ++i)
+      out.write(buffer.get(i));
+  }
+
+  public static void putString(ByteArrayOutputStream out, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    putUleb32(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /** Writes a section, with its id and length, from its contents */
+  public static void putSection(
+    ByteArrayOutputStream out,
+    int sectionId,
+    ByteArrayOutputStream contents
+  ) {
+    out.write(sectionId);
+    putUleb32(out, contents.size());
+    out.write(contents.toByteArray(), 0, contents.size());
+  }
+
   private static boolean getBoolean(ByteBuffer buffer) {
     byte flag = buffer.get();
     if (flag == 0x00) {
@@ -213,19 +284,36 @@ class WasmUtil {
     }
   }
 
-  public static WasmFunctionSignature getFuncType(ByteBuffer buffer) {
+  /**
+   * Reads a function type, returning the module's canonical signature for it:
+   * modules repeat the same few types over and over, so there's only one
+   * instance of each in the table, and signatures can be compared with ==.
+   */
+  public static WasmFunctionSignature getFuncType(
+    ByteBuffer buffer,
+    FuncTypeTable funcTypes
+  ) {
     byte op = buffer.get();
     if (op != OPCODE_FUNCTYPE)
       throw new LdException("Invalid Wasm file: bad functype opcode");
     int numParameterTypes = getUleb32(buffer);
-    List<WasmValType> parameterTypes = new ArrayList<>(numParameterTypes);
-    while ((numParameterTypes--) > 0)
-      parameterTypes.add(WasmValType.of(buffer.get()));
+    int parameterTypes = buffer.position();
+    int hash = numParameterTypes;
+    for (int i = 0; i < numParameterTypes; ++i)
+      hash = 31 * hash + WasmValType.of(buffer.get()).code;
     int numResultTypes = getUleb32(buffer);
-    List<WasmValType> resultTypes = new ArrayList<>(numResultTypes);
-    while ((numResultTypes--) > 0)
-      resultTypes.add(WasmValType.of(buffer.get()));
-    return new WasmFunctionSignature(parameterTypes, resultTypes);
+    int resultTypes = buffer.position();
+    hash = 31 * hash + numResultTypes;
+    for (int i = 0; i < numResultTypes; ++i)
+      hash = 31 * hash + WasmValType.of(buffer.get()).code;
+    return funcTypes.intern(
+      buffer,
+      hash,
+      parameterTypes,
+      numParameterTypes,
+      resultTypes,
+      numResultTypes
+    );
   }
 
 
@@ -6,6 +6,8 @@ import uk.me.nicholaswilson.jsld.LdException;
 public enum WasmElemType {
   anyfunc(0x70);
 
+  private static final WasmElemType[] VALUES = values();
+
   public final int code;
 
   WasmElemType(int code) {
@@ -13,7 +15,7 @@ public enum WasmElemType {
   }
 
   public static WasmElemType of(byte code) {
-    for (WasmElemType type : values())
+    for (WasmElemType type : VALUES)
       if (type.code == code)
         return type;
     throw new LdException("Invalid Wasm file: bad table elemtype");
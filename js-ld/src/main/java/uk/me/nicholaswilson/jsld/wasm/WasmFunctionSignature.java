@@ -3,6 +3,10 @@ package uk.me.nicholaswilson.jsld.wasm;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * A function type.  The signatures read from a module are interned, so two of
+ * its functions have the same type exactly when their signatures are ==.
+ */
 public class WasmFunctionSignature {
   public final List<WasmValType> parameterTypes;
   public final List<WasmValType> resultTypes;
@@ -8,6 +8,8 @@ public enum WasmObjectType {
   MEMORY(0x02),
   GLOBAL(0x03);
 
+  private static final WasmObjectType[] VALUES = values();
+
   public final int code;
 
   WasmObjectType(int code) {
@@ -15,7 +17,7 @@ public enum WasmObjectType {
   }
 
   public static WasmObjectType of(byte code) {
-    for (WasmObjectType type : values())
+    for (WasmObjectType type : VALUES)
       if (type.code == code)
         return type;
     throw new LdException("Invalid Wasm file: bad object type");
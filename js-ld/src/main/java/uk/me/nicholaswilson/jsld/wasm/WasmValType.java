@@ -8,6 +8,9 @@ public enum WasmValType {
   f32(0x7d),
   f64(0x7c);
 
+  // values() copies the array every time it's called
+  private static final WasmValType[] VALUES = values();
+
   public final int code;
 
   WasmValType(int code) {
@@ -15,7 +18,7 @@ public enum WasmValType {
   }
 
   public static WasmValType of(byte code) {
-    for (WasmValType type : values())
+    for (WasmValType type : VALUES)
       if (type.code == code)
         return type;
     throw new LdException("Invalid Wasm file: bad valtype");
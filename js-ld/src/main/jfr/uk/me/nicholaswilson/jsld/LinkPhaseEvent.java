@@ -0,0 +1,49 @@
+package uk.me.nicholaswilson.jsld;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event for one phase of a link.  It's built apart from the rest of
+ * the linker, and only by JDK 11 on (see the jfr profile in pom.xml), so
+ * LinkStats looks it up by name, and does without it if it's missing or the
+ * JVM doesn't have JFR.
+ */
+@Name("uk.me.nicholaswilson.jsld.LinkPhase")
+@Label("Link Phase")
+@Category("js-ld")
+@Description("One phase of a js-ld link")
+class LinkPhaseEvent extends Event {
+
+  @Label("Phase")
+  String phase;
+
+  @Label("File")
+  String file;
+
+  @Label("Allocated")
+  @DataAmount
+  long allocatedBytes;
+
+  static Object begin(String phase, String file) {
+    LinkPhaseEvent event = new LinkPhaseEvent();
+    event.phase = phase;
+    event.file = file;
+    event.begin();
+    return event;
+  }
+
+  static void commit(Object event, long allocatedBytes) {
+    LinkPhaseEvent e = (LinkPhaseEvent)event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.allocatedBytes = allocatedBytes;
+      e.commit();
+    }
+  }
+
+}